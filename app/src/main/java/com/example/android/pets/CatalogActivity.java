@@ -18,6 +18,7 @@ package com.example.android.pets;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
@@ -26,25 +27,130 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.CompoundButton;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+import android.widget.Toast;
 
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQueryBuilder;
+import com.example.android.pets.data.PetContract.SectionEntry;
+import com.example.android.pets.data.PetStartupTrace;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity
+        implements LoaderManager.LoaderCallbacks<PetListLoader.Window> {
 
     /** Identifier for the pet data loader */
     private static final int PET_LOADER = 0;
 
-    /** Adapter for the ListView */
+    /** Identifier for the loader of the sections */
+    private static final int SECTION_LOADER = 1;
+
+    /** Number of pets read from the provider per page */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * Number of pages the list keeps loaded at most. Pages further from where it is scrolled are
+     * dropped, and read again if it is scrolled back to them.
+     */
+    private static final int MAX_PAGES = 5;
+
+    /** Start loading the next page when the list is scrolled this close to the last loaded pet */
+    private static final int PREFETCH_DISTANCE = 10;
+
+    /** Heaviest weight the light pets filter chip keeps, in kg */
+    private static final int LIGHT_MAX_WEIGHT = 10;
+
+    /** Saved state keys of the filters */
+    private static final String STATE_GENDER_FILTER = "gender_filter";
+    private static final String STATE_LIGHT_ONLY = "light_only";
+    private static final String STATE_SORT_BY_NAME = "sort_by_name";
+
+    /** Adapter for the RecyclerView */
     PetCursorAdapter mCursorAdapter;
 
+    /** Layout manager of the RecyclerView, used to find the last visible pet */
+    private LinearLayoutManager mLayoutManager;
+
+    /** View shown instead of the list when there are no pets */
+    private View mEmptyView;
+
+    /** The window of pets loaded, or null until the first page is loaded */
+    private PetListLoader.Window mWindow;
+
+    /** Letters of the sections, shown while the list is ordered by name */
+    private LinearLayout mSectionStrip;
+
+    /** Filter chips */
+    private CompoundButton mMaleChip;
+    private CompoundButton mFemaleChip;
+    private CompoundButton mLightChip;
+    private CompoundButton mSortByNameChip;
+
+    /** Gender the list is filtered by, or -1 to show every gender */
+    private int mGenderFilter = -1;
+
+    /** Whether the list only shows pets of at most {@link #LIGHT_MAX_WEIGHT} */
+    private boolean mLightOnly;
+
+    /** Whether the list is ordered by name rather than in the order the pets were added */
+    private boolean mSortByName;
+
+    /** Listener of every filter chip */
+    private final CompoundButton.OnCheckedChangeListener mChipListener =
+            new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton chip, boolean isChecked) {
+                    // A pet is either male or female, so those two chips exclude each other
+                    if (isChecked && chip == mMaleChip) {
+                        mFemaleChip.setChecked(false);
+                    } else if (isChecked && chip == mFemaleChip) {
+                        mMaleChip.setChecked(false);
+                    }
+                    applyFilters();
+                }
+            };
+
+    /** Callbacks of the loader of the sections of the pets ordered by name */
+    private final LoaderManager.LoaderCallbacks<Cursor> mSectionCallbacks =
+            new LoaderManager.LoaderCallbacks<Cursor>() {
+                @Override
+                public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+                    // The sections of the pets the chips keep, computed by the provider
+                    String[] projection = { SectionEntry.COLUMN_SECTION };
+                    return new CursorLoader(CatalogActivity.this,
+                            buildQuery().buildSectionsUri(), projection, null, null, null);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+                    // There is a row per first letter, so there are only a few to read here
+                    String[] sections = new String[cursor.getCount()];
+                    int sectionColumnIndex =
+                            cursor.getColumnIndexOrThrow(SectionEntry.COLUMN_SECTION);
+                    cursor.moveToPosition(-1);
+                    while (cursor.moveToNext()) {
+                        sections[cursor.getPosition()] = cursor.getString(sectionColumnIndex);
+                    }
+                    showSections(sections);
+                }
+
+                @Override
+                public void onLoaderReset(Loader<Cursor> loader) {
+                    showSections(new String[0]);
+                }
+            };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -60,42 +166,241 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        // Find the ListView which will be populated with the pet data
-        ListView petListView = (ListView) findViewById(R.id.list);
+        // Find the RecyclerView which will be populated with the pet data
+        RecyclerView petRecyclerView = (RecyclerView) findViewById(R.id.list);
+        mLayoutManager = new LinearLayoutManager(this);
+        petRecyclerView.setLayoutManager(mLayoutManager);
 
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        petListView.setEmptyView(emptyView);
+        // Find the empty view, which is shown when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
 
-        // Setup an Adapter to create a list item for each row of pet data in the Cursor.
-        // There is no pet data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new PetCursorAdapter(this, null);
-        petListView.setAdapter(mCursorAdapter);
+        // Jump to the section under the finger as it touches or moves along the strip
+        mSectionStrip = (LinearLayout) findViewById(R.id.section_strip);
+        mSectionStrip.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                int count = mSectionStrip.getChildCount();
+                if (count == 0 || view.getHeight() == 0) {
+                    return false;
+                }
+                int action = event.getActionMasked();
+                if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_MOVE) {
+                    jumpToSection((int) (event.getY() * count / view.getHeight()));
+                }
+                return true;
+            }
+        });
 
-        // Setup the item click listener
-        petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // The chips restore their own checked state, and the loaders keep the pets of the
+        // filters they were started with, so only the filters themselves are restored here
+        if (savedInstanceState != null) {
+            mGenderFilter = savedInstanceState.getInt(STATE_GENDER_FILTER, -1);
+            mLightOnly = savedInstanceState.getBoolean(STATE_LIGHT_ONLY);
+            mSortByName = savedInstanceState.getBoolean(STATE_SORT_BY_NAME);
+        }
+        mMaleChip = (CompoundButton) findViewById(R.id.chip_male);
+        mFemaleChip = (CompoundButton) findViewById(R.id.chip_female);
+        mLightChip = (CompoundButton) findViewById(R.id.chip_light);
+        mSortByNameChip = (CompoundButton) findViewById(R.id.chip_sort_by_name);
+        mMaleChip.setOnCheckedChangeListener(mChipListener);
+        mFemaleChip.setOnCheckedChangeListener(mChipListener);
+        mLightChip.setOnCheckedChangeListener(mChipListener);
+        mSortByNameChip.setOnCheckedChangeListener(mChipListener);
+
+        // Setup an Adapter to create a list item for each pet.
+        // There is no pet data yet (until the loader finishes), so the list starts out empty.
+        mCursorAdapter = new PetCursorAdapter(new PetCursorAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onPetClick(PetListSnapshot pets, int position) {
                 // Create new intent to go to {@link EditorActivity}
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
 
                 // Form the content URI that represents the specific pet that was clicked on,
-                // by appending the "id" (passed as input to this method) onto the
+                // by appending the "id" of the pet onto the
                 // {@link PetEntry#CONTENT_URI}.
                 // For example, the URI would be "content://com.example.android.pets/pets/2"
                 // if the pet with ID 2 was clicked on.
-                Uri currentPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+                Uri currentPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI,
+                        pets.getId(position));
 
                 // Set the URI on the data field of the intent
                 intent.setData(currentPetUri);
 
+                // Hand the pet as the list shows it to the editor, so it can show it at once
+                EditorActivity.putPet(intent, pets, position);
+
                 // Launch the {@link EditorActivity} to display the data for the current pet.
                 startActivity(intent);
             }
         });
+        petRecyclerView.setAdapter(mCursorAdapter);
+
+        // The adapter applies new pets asynchronously, so check for an empty list and for the
+        // next page to load whenever it actually changes
+        mCursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                onListChanged();
+            }
 
-        // Kick off the loader
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                onListChanged();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                onListChanged();
+            }
+        });
+
+        // Load the next page of pets as the user scrolls towards either end of the loaded ones
+        petRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                maybeLoadPages();
+            }
+        });
+
+        // Kick off the loader for the first page
         getLoaderManager().initLoader(PET_LOADER, null, this);
+        if (mSortByName) {
+            getLoaderManager().initLoader(SECTION_LOADER, null, mSectionCallbacks);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_GENDER_FILTER, mGenderFilter);
+        outState.putBoolean(STATE_LIGHT_ONLY, mLightOnly);
+        outState.putBoolean(STATE_SORT_BY_NAME, mSortByName);
+    }
+
+    /**
+     * Read the filters from the chips, and load the list again from its first page if they
+     * changed. The pets shown stay until the first page of the new list is loaded.
+     */
+    private void applyFilters() {
+        int genderFilter = -1;
+        if (mMaleChip.isChecked()) {
+            genderFilter = PetEntry.GENDER_MALE;
+        } else if (mFemaleChip.isChecked()) {
+            genderFilter = PetEntry.GENDER_FEMALE;
+        }
+        boolean lightOnly = mLightChip.isChecked();
+        boolean sortByName = mSortByNameChip.isChecked();
+        if (genderFilter == mGenderFilter && lightOnly == mLightOnly
+                && sortByName == mSortByName) {
+            return;
+        }
+        mGenderFilter = genderFilter;
+        mLightOnly = lightOnly;
+        mSortByName = sortByName;
+
+        mWindow = null;
+        getLoaderManager().restartLoader(PET_LOADER, null, this);
+
+        // Only a list ordered by name has sections
+        if (mSortByName) {
+            getLoaderManager().restartLoader(SECTION_LOADER, null, mSectionCallbacks);
+        } else {
+            getLoaderManager().destroyLoader(SECTION_LOADER);
+        }
+    }
+
+    /**
+     * Return a query of the pets the chips keep, in the order they ask for.
+     */
+    private PetQueryBuilder buildQuery() {
+        PetQueryBuilder query = new PetQueryBuilder();
+        if (mGenderFilter >= 0) {
+            query.gender(mGenderFilter);
+        }
+        if (mLightOnly) {
+            query.maxWeight(LIGHT_MAX_WEIGHT);
+        }
+        if (mSortByName) {
+            query.sortBy(PetEntry.COLUMN_PET_NAME);
+        }
+        return query;
+    }
+
+    /**
+     * Give the sections to the adapter and show their letters in the strip, or hide the strip
+     * if there are none.
+     */
+    private void showSections(String[] sections) {
+        mCursorAdapter.setSections(sections);
+        mSectionStrip.removeAllViews();
+        for (String section : sections) {
+            TextView letter = (TextView) getLayoutInflater()
+                    .inflate(R.layout.section_letter, mSectionStrip, false);
+            letter.setText(section);
+            mSectionStrip.addView(letter);
+        }
+        mSectionStrip.setVisibility(sections.length == 0 ? View.GONE : View.VISIBLE);
+    }
+
+    /**
+     * Scroll the list to the first pet of the given section. If the list doesn't show where
+     * the section starts, it starts again there instead, with a page read at its first name,
+     * so the pets before it are only read if the list is scrolled back to them.
+     */
+    private void jumpToSection(int section) {
+        Object[] sections = mCursorAdapter.getSections();
+        if (mWindow == null || section < 0 || section >= sections.length) {
+            return;
+        }
+        int position = mCursorAdapter.getPositionForSection(section);
+        int shown = mCursorAdapter.getItemCount();
+        if (position < shown && (position > 0 || mWindow.atStart())) {
+            mLayoutManager.scrollToPositionWithOffset(position, 0);
+        } else if (position == shown && mWindow.atEnd) {
+            // The section has no pets left, as they were removed since the sections were
+            // read, so go to the end of the list instead
+            mLayoutManager.scrollToPositionWithOffset(Math.max(0, shown - 1), 0);
+        } else {
+            PetListLoader loader = getPetLoader();
+            if (loader != null) {
+                loader.jumpTo((String) sections[section]);
+            }
+        }
+    }
+
+    /**
+     * Called after the adapter applied a change to the list.
+     */
+    private void onListChanged() {
+        mEmptyView.setVisibility(mCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+        maybeLoadPages();
+    }
+
+    /**
+     * Load the next page if the list is scrolled close to the last loaded pet, or the page
+     * before if it is scrolled close to the first.
+     */
+    private void maybeLoadPages() {
+        PetListLoader loader = getPetLoader();
+        if (loader == null) {
+            return;
+        }
+        int lastVisible = mLayoutManager.findLastVisibleItemPosition();
+        if (lastVisible >= mCursorAdapter.getItemCount() - PREFETCH_DISTANCE) {
+            loader.loadMore(PAGE_SIZE);
+        }
+        int firstVisible = mLayoutManager.findFirstVisibleItemPosition();
+        if (firstVisible <= PREFETCH_DISTANCE) {
+            loader.loadEarlier();
+        }
+    }
+
+    /**
+     * Return the loader of the pets, or null if it isn't created yet.
+     */
+    private PetListLoader getPetLoader() {
+        Loader<PetListLoader.Window> loader = getLoaderManager().getLoader(PET_LOADER);
+        return (PetListLoader) loader;
     }
 
     /**
@@ -110,11 +415,25 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
         values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
 
-        // Insert a new row for Toto into the provider using the ContentResolver.
-        // Use the {@link PetEntry#CONTENT_URI} to indicate that we want to insert
-        // into the pets database table.
-        // Receive the new content URI that will allow us to access Toto's data in the future.
-        Uri newUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
+        // Queue the insert of a new row for Toto into the provider. The list shows Toto once
+        // the insert is committed and the loader reloads.
+        PetWriteQueue.getInstance(this).insert(values, null);
+    }
+
+    /**
+     * Queue the delete of every pet, and report it once it is committed. The report only uses
+     * the application context, so it is safe even if the catalog is destroyed by then.
+     */
+    private void deleteAllPets() {
+        final Context context = getApplicationContext();
+        PetWriteQueue.getInstance(this).delete(PetEntry.CONTENT_URI,
+                new PetWriteQueue.Callback() {
+                    @Override
+                    public void onWriteComplete(Uri uri, int rows) {
+                        Toast.makeText(context, context.getString(R.string.all_pets_deleted, rows),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
     }
 
     @Override
@@ -135,38 +454,44 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
-                getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+                deleteAllPets();
                 return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED };
-
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                PetEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null);                  // Default sort order
+    public Loader<PetListLoader.Window> onCreateLoader(int i, Bundle bundle) {
+        // This loader will execute the ContentProvider's query method on a background thread,
+        // a page of the pets the chips keep at a time, and copy the pets out of the cursor
+        // there too
+        return new PetListLoader(this, buildQuery(), PAGE_SIZE, MAX_PAGES);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link PetCursorAdapter} with this new cursor containing updated pet data
-        mCursorAdapter.swapCursor(data);
+    public void onLoadFinished(Loader<PetListLoader.Window> loader, PetListLoader.Window data) {
+        PetStartupTrace.mark(PetContract.KEY_STARTUP_FIRST_PAGE_LOADED);
+        boolean jumped = mWindow != null && data.jumps != mWindow.jumps;
+        mWindow = data;
+
+        if (jumped) {
+            // The list starts again at a section, so there is nothing to compare with
+            mCursorAdapter.replacePets(data.pets);
+            mLayoutManager.scrollToPositionWithOffset(0, 0);
+        } else if (data.grownFrom != null) {
+            // A page was added at one end, and the pets past the other dropped, so there is
+            // nothing to compare
+            mCursorAdapter.shiftPets(data.grownFrom, data.pets, data.shift);
+        } else {
+            // Update {@link PetCursorAdapter} with the updated pet data
+            mCursorAdapter.submitPets(data.pets);
+        }
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<PetListLoader.Window> loader) {
         // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        mWindow = null;
+        mCursorAdapter.submitPets(PetListSnapshot.EMPTY);
     }
-}
\ No newline at end of file
+}
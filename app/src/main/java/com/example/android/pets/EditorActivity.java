@@ -46,6 +46,22 @@ import com.example.android.pets.data.PetContract.PetEntry;
  */
 public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
+    /** Intent extras holding the pet as the list showed it, see {@link #putPet} */
+    private static final String EXTRA_PET_NAME = "com.example.android.pets.extra.PET_NAME";
+    private static final String EXTRA_PET_BREED = "com.example.android.pets.extra.PET_BREED";
+    private static final String EXTRA_PET_GENDER = "com.example.android.pets.extra.PET_GENDER";
+    private static final String EXTRA_PET_WEIGHT = "com.example.android.pets.extra.PET_WEIGHT";
+    private static final String EXTRA_PET_VERSION = "com.example.android.pets.extra.PET_VERSION";
+
+    /** Saved state holding the queued write, see {@link #mPendingWrite} */
+    private static final String STATE_PENDING_WRITE = "pending_write";
+    private static final String STATE_PENDING_WRITE_KIND = "pending_write_kind";
+
+    /** Kinds of write the editor queues */
+    private static final int WRITE_INSERT = 0;
+    private static final int WRITE_UPDATE = 1;
+    private static final int WRITE_DELETE = 2;
+
     /**
      * EditText field to enter the pet's name
      */
@@ -81,6 +97,28 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     private boolean mPetHasChanged = false;
 
+    /**
+     * Request ID of the save or delete that is queued, so the pet isn't written twice, or
+     * {@link PetWriteQueue#NO_REQUEST}. It is kept across a rotation, and the new editor
+     * takes over the callback of the write.
+     */
+    private long mPendingWrite = PetWriteQueue.NO_REQUEST;
+
+    /** Kind of the queued write, one of the WRITE_ constants */
+    private int mPendingWriteKind;
+
+    /**
+     * The existing pet the user is editing, so a save only writes the fields that changed and
+     * only if nobody saved the pet since. It follows every load until the user starts editing,
+     * and then stays as it was. It starts as the pet the list showed, version included, or
+     * with a version of -1 until the pet is loaded if the editor wasn't opened from the list.
+     */
+    private String mLoadedName;
+    private String mLoadedBreed;
+    private int mLoadedGender;
+    private int mLoadedWeight;
+    private long mLoadedVersion = -1;
+
     private View.OnTouchListener mOnTouchListener = new View.OnTouchListener() {
         @Override
         public boolean onTouch(View view, MotionEvent motionEvent) {
@@ -129,10 +167,73 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         setupSpinner();
 
+        // Show the pet as the list showed it right away, rather than an empty form until the
+        // loader reads it again. The loader then brings the editor up to date, unless the user
+        // started editing first, in which case the edits are saved against the version the
+        // list showed.
+        if (mCurrentPetUri != null && savedInstanceState == null
+                && intent.hasExtra(EXTRA_PET_NAME)) {
+            mLoadedName = intent.getStringExtra(EXTRA_PET_NAME);
+            mLoadedBreed = intent.getStringExtra(EXTRA_PET_BREED);
+            mLoadedGender = intent.getIntExtra(EXTRA_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            mLoadedWeight = intent.getIntExtra(EXTRA_PET_WEIGHT, 0);
+            mLoadedVersion = intent.getLongExtra(EXTRA_PET_VERSION, -1);
+            showPet(mLoadedName, mLoadedBreed, mLoadedGender, mLoadedWeight);
+        }
+
         mNameEditText.setOnTouchListener(mOnTouchListener);
         mBreedEditText.setOnTouchListener(mOnTouchListener);
         mWeightEditText.setOnTouchListener(mOnTouchListener);
         mGenderSpinner.setOnTouchListener(mOnTouchListener);
+
+        // A write queued before a rotation reports to this editor from now on
+        if (savedInstanceState != null) {
+            mPendingWrite = savedInstanceState.getLong(STATE_PENDING_WRITE,
+                    PetWriteQueue.NO_REQUEST);
+            mPendingWriteKind = savedInstanceState.getInt(STATE_PENDING_WRITE_KIND);
+        }
+        if (mPendingWrite != PetWriteQueue.NO_REQUEST && !PetWriteQueue.getInstance(this)
+                .attach(mPendingWrite, newWriteCallback(mPendingWriteKind))) {
+            // The write was queued by a process that has since been killed, so it is unknown
+            // whether it was committed. Writing again could add the pet twice, so the editor
+            // closes and the list shows what was saved.
+            mPendingWrite = PetWriteQueue.NO_REQUEST;
+            finish();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putLong(STATE_PENDING_WRITE, mPendingWrite);
+        outState.putInt(STATE_PENDING_WRITE_KIND, mPendingWriteKind);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The callback of the write refers to this editor, so it must never run once it is
+        // destroyed. When the editor is recreated, the new one attaches to the write instead.
+        if (mPendingWrite != PetWriteQueue.NO_REQUEST) {
+            PetWriteQueue queue = PetWriteQueue.getInstance(this);
+            if (isChangingConfigurations()) {
+                queue.detach(mPendingWrite);
+            } else {
+                queue.forget(mPendingWrite);
+            }
+        }
+    }
+
+    /**
+     * Add the pet at the given position of the list to the intent that opens it, so the editor
+     * can show it without waiting for the database.
+     */
+    public static void putPet(Intent intent, PetListSnapshot pets, int position) {
+        intent.putExtra(EXTRA_PET_NAME, pets.getName(position));
+        intent.putExtra(EXTRA_PET_BREED, pets.getBreed(position));
+        intent.putExtra(EXTRA_PET_GENDER, pets.getGender(position));
+        intent.putExtra(EXTRA_PET_WEIGHT, pets.getWeight(position));
+        intent.putExtra(EXTRA_PET_VERSION, pets.getVersion(position));
     }
 
     /**
@@ -246,27 +347,64 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
     private void deletePet() {
-        //TODO
-        if (mCurrentPetUri != null) {
-            int rowsDeleted = getContentResolver().delete(mCurrentPetUri, null, null);
-            //NavUtils.navigateUpFromSameTask(this);
-
-            if (rowsDeleted == 0) {
-                Toast.makeText(this, getString(R.string.pet_deletion_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, getString(R.string.pet_deleted),
-                        Toast.LENGTH_SHORT).show();
-            }
+        if (mCurrentPetUri == null || mPendingWrite != PetWriteQueue.NO_REQUEST) {
+            return;
         }
-        finish();
+        //The pet is deleted in the background, and the editor closes once it is gone
+        mPendingWriteKind = WRITE_DELETE;
+        mPendingWrite = PetWriteQueue.getInstance(this).delete(mCurrentPetUri,
+                newWriteCallback(WRITE_DELETE));
+    }
+
+    /**
+     * Create the callback for a write of the given kind, which reports it and closes the
+     * editor, or reloads the pet after a conflict.
+     */
+    private PetWriteQueue.Callback newWriteCallback(final int kind) {
+        return new PetWriteQueue.Callback() {
+            @Override
+            public void onWriteComplete(Uri uri, int rows) {
+                mPendingWrite = PetWriteQueue.NO_REQUEST;
+                switch (kind) {
+                    case WRITE_INSERT:
+                        // If the new content URI is null, there was an error
+                        showToast(uri == null ? R.string.editor_insert_pet_failed
+                                : R.string.editor_insert_pet_successful);
+                        break;
+                    case WRITE_UPDATE:
+                        if (rows == PetWriteQueue.CONFLICT) {
+                            // Stay open and load the pet as the other edit saved it. The
+                            // user's edits are dropped, so the load shows it as is.
+                            showToast(R.string.editor_update_pet_conflict);
+                            mPetHasChanged = false;
+                            getLoaderManager().restartLoader(EXISTING_PET_LOADER, null,
+                                    EditorActivity.this);
+                            return;
+                        }
+                        // If no rows were affected, then there was an error with the update
+                        showToast(rows == 0 ? R.string.editor_update_pet_failed
+                                : R.string.editor_update_pet_successful);
+                        break;
+                    default:
+                        showToast(rows == 0 ? R.string.pet_deletion_failed
+                                : R.string.pet_deleted);
+                        break;
+                }
+                finish();
+            }
+        };
     }
 
 
     /**
-     * Get user input from editor and save new pet into database.
+     * Get user input from editor and queue the save of the pet into the database. The editor
+     * closes once the pet is saved.
      */
     private void savePet() {
+        if (mPendingWrite != PetWriteQueue.NO_REQUEST) {
+            return;
+        }
+
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
         String nameString = mNameEditText.getText().toString().trim();
@@ -297,40 +435,60 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         // Determine if this is a new or existing pet by checking if mCurrentPetUri is null or not
         if (mCurrentPetUri == null) {
-            // This is a NEW pet, so insert a new pet into the provider,
-            // returning the content URI for the new pet.
-            Uri newUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-
-            // Show a toast message depending on whether or not the insertion was successful.
-            if (newUri == null) {
-                // If the new content URI is null, then there was an error with insertion.
-                Toast.makeText(this, getString(R.string.editor_insert_pet_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the insertion was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_insert_pet_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            // This is a NEW pet, so queue the insert of a new pet into the provider. The
+            // callback receives the content URI for the new pet once it is committed.
+            mPendingWriteKind = WRITE_INSERT;
+            mPendingWrite = PetWriteQueue.getInstance(this).insert(values,
+                    newWriteCallback(WRITE_INSERT));
         } else {
-            // Otherwise this is an EXISTING pet, so update the pet with content URI: mCurrentPetUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because mCurrentPetUri will already identify the correct row in the database that
-            // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentPetUri, values, null, null);
-
-            // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
-                // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, getString(R.string.editor_update_pet_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_update_pet_successful),
-                        Toast.LENGTH_SHORT).show();
+            // Otherwise this is an EXISTING pet. Until it is loaded there is nothing to
+            // compare with, so everything is written.
+            Uri updateUri = mCurrentPetUri;
+            if (mLoadedVersion >= 0) {
+                removeUnchanged(values);
+                if (values.size() == 0) {
+                    // Nothing changed, so there is nothing to write or reload
+                    finish();
+                    return;
+                }
+                // The update is only applied if nobody else updated the pet since it loaded
+                updateUri = PetEntry.buildVersionedUri(mCurrentPetUri, mLoadedVersion);
             }
+
+            mPendingWriteKind = WRITE_UPDATE;
+            mPendingWrite = PetWriteQueue.getInstance(this).update(updateUri, values,
+                    newWriteCallback(WRITE_UPDATE));
+        }
+    }
+
+    /**
+     * Remove the values that are the same as in the pet as it was loaded. The editor shows a
+     * missing breed as empty, so an empty breed is unchanged from a null one.
+     */
+    private void removeUnchanged(ContentValues values) {
+        if (values.getAsString(PetEntry.COLUMN_PET_NAME).equals(mLoadedName)) {
+            values.remove(PetEntry.COLUMN_PET_NAME);
+        }
+        String loadedBreed = mLoadedBreed == null ? "" : mLoadedBreed;
+        if (values.getAsString(PetEntry.COLUMN_PET_BREED).equals(loadedBreed)) {
+            values.remove(PetEntry.COLUMN_PET_BREED);
+        }
+        if (values.getAsInteger(PetEntry.COLUMN_PET_GENDER) == mLoadedGender) {
+            values.remove(PetEntry.COLUMN_PET_GENDER);
+        }
+        if (values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT) == mLoadedWeight) {
+            values.remove(PetEntry.COLUMN_PET_WEIGHT);
         }
     }
 
+    /**
+     * Show a short toast. Writes complete after a delay, so the toast uses the application
+     * context, which outlives the editor.
+     */
+    private void showToast(int messageId) {
+        Toast.makeText(getApplicationContext(), getString(messageId), Toast.LENGTH_SHORT).show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -356,10 +514,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save pet to database
+                // Save pet to database, the activity exits once it is saved
                 savePet();
-                // Exit activity
-                finish();
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -415,7 +571,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 PetEntry.COLUMN_PET_NAME,
                 PetEntry.COLUMN_PET_BREED,
                 PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT};
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_VERSION};
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
@@ -437,6 +594,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
             int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
             int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+            int versionColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_VERSION);
 
             // Extract out the value from the Cursor for the given column index
             String name = cursor.getString(nameColumnIndex);
@@ -444,29 +602,61 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             int gender = cursor.getInt(genderColumnIndex);
             int weight = cursor.getInt(weightColumnIndex);
 
-            // Update the views on the screen with the values from the database
-            mNameEditText.setText(name);
-            mBreedEditText.setText(breed);
-            mWeightEditText.setText(Integer.toString(weight));
-
-            // Gender is a dropdown spinner, so map the constant value from the database
-            // into one of the dropdown options (0 is Unknown, 1 is Male, 2 is Female).
-            // Then call setSelection() so that option is displayed on screen as the current selection.
-            switch (gender) {
-                case PetEntry.GENDER_MALE:
-                    mGenderSpinner.setSelection(1);
-                    break;
-                case PetEntry.GENDER_FEMALE:
-                    mGenderSpinner.setSelection(2);
-                    break;
-                default:
-                    mGenderSpinner.setSelection(0);
-                    break;
+            long version = cursor.getLong(versionColumnIndex);
+
+            // Once the user started editing, the edits and the pet they started from are
+            // kept. If the pet was saved by someone else meanwhile, the save is then made
+            // against the version the user started from, and fails as a conflict rather than
+            // overwriting the other edit.
+            if (mPetHasChanged && mLoadedVersion >= 0) {
+                return;
             }
+
+            // The views already show the pet if it is unchanged since the list, or since the
+            // last load. Otherwise update them, unless the user started editing before the
+            // first load, in which case the edits are kept.
+            boolean shown = TextUtils.equals(name, mLoadedName)
+                    && TextUtils.equals(breed, mLoadedBreed)
+                    && gender == mLoadedGender && weight == mLoadedWeight;
+            if (!shown && !mPetHasChanged) {
+                showPet(name, breed, gender, weight);
+            }
+
+            // Keep what was loaded, to compare with when the pet is saved
+            mLoadedName = name;
+            mLoadedBreed = breed;
+            mLoadedGender = gender;
+            mLoadedWeight = weight;
+            mLoadedVersion = version;
         }
 
     }
 
+    /**
+     * Show the given pet in the input fields.
+     */
+    private void showPet(String name, String breed, int gender, int weight) {
+        // Update the views on the screen with the values from the database
+        mNameEditText.setText(name);
+        mBreedEditText.setText(breed);
+        mWeightEditText.setText(Integer.toString(weight));
+
+        // Gender is a dropdown spinner, so map the constant value from the database
+        // into one of the dropdown options (0 is Unknown, 1 is Male, 2 is Female).
+        // Then call setSelection() so that option is displayed on screen as the current selection.
+        switch (gender) {
+            case PetEntry.GENDER_MALE:
+                mGenderSpinner.setSelection(1);
+                break;
+            case PetEntry.GENDER_FEMALE:
+                mGenderSpinner.setSelection(2);
+                break;
+            default:
+                mGenderSpinner.setSelection(0);
+                break;
+        }
+    }
+
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // If the loader is invalidated, clear out all the data from the input fields.
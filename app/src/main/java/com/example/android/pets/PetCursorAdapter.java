@@ -4,68 +4,341 @@ package com.example.android.pets;
  * Created by Jeff on 10/22/2017.
  */
 
-import android.content.Context;
-import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
-import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetStartupTrace;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
- * {@link PetCursorAdapter} is an adapter for a list or grid view
- * that uses a {@link Cursor} of pet data as its data source. This adapter knows
- * how to create list items for each row of pet data in the {@link Cursor}.
+ * {@link PetCursorAdapter} is an adapter for a {@link RecyclerView} that uses a snapshot of pet
+ * data read from a cursor as its data source. This adapter knows how to create list items for
+ * each pet in the snapshot.
+ * <p>
+ * A new snapshot is compared with the pets currently shown on a background thread, and only
+ * the rows that changed are rebound. Every pet has a stable id, its {@link
+ * com.example.android.pets.data.PetContract.PetEntry#_ID}, so the list keeps its position while
+ * pets are added or removed around it.
+ * <p>
+ * When the pets are ordered by name, the adapter also indexes them by their first letter. The
+ * sections come from the provider, see {@link
+ * com.example.android.pets.data.PetContract.SectionEntry}, and are found among the pets shown
+ * by their names. The list may only show some of the pets, so a section may start before or
+ * after them, in which case the list jumps there, see {@link PetListLoader#jumpTo}.
  */
-public class PetCursorAdapter extends CursorAdapter {
+public class PetCursorAdapter extends RecyclerView.Adapter<PetCursorAdapter.ViewHolder>
+        implements SectionIndexer {
+
+    /**
+     * Listener for clicks on a pet in the list.
+     */
+    public interface OnPetClickListener {
+
+        /**
+         * @param pets     the pets shown when the pet was clicked
+         * @param position position of the pet in them
+         */
+        void onPetClick(PetListSnapshot pets, int position);
+    }
+
+    /** Whether a pet was bound to a row yet, in this process. Only used on the main thread */
+    private static boolean sFirstRowBound;
+
+    /** Thread the snapshots are compared on, one at a time and in order */
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final OnPetClickListener mClickListener;
+
+    /** The pets currently shown. Only read and replaced on the main thread */
+    private PetListSnapshot mSnapshot = PetListSnapshot.EMPTY;
+
+    /** Incremented on every submit, so only the result of the latest one is applied */
+    private int mGeneration;
+
+    /** Generation of the pets shown, behind {@link #mGeneration} while a submit is compared */
+    private int mShownGeneration;
+
+    /** First letters of the names, in order */
+    private String[] mSections = new String[0];
 
     /**
      * Constructs a new {@link PetCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param clickListener The listener called when a pet is clicked
+     */
+    public PetCursorAdapter(OnPetClickListener clickListener) {
+        mClickListener = clickListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show the given pets. They are compared with the pets currently shown on a background
+     * thread, then the changes are applied on the main thread.
+     */
+    public void submitPets(final PetListSnapshot newSnapshot) {
+        final int generation = ++mGeneration;
+        final PetListSnapshot oldSnapshot = mSnapshot;
+
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result = DiffUtil.calculateDiff(
+                        new SnapshotDiffCallback(oldSnapshot, newSnapshot), false);
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A newer submit was made while this one was computed, so its result
+                        // is the one that counts
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mSnapshot = newSnapshot;
+                        mShownGeneration = generation;
+                        result.dispatchUpdatesTo(PetCursorAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show the given pets in place of the pets currently shown, without comparing them, such as
+     * after a jump to pets that aren't shown.
+     */
+    public void replacePets(PetListSnapshot snapshot) {
+        // Drop the result of any submit still being compared
+        mShownGeneration = ++mGeneration;
+        mSnapshot = snapshot;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Show the given pets, which are the given old pets moved by the given number of positions,
+     * with pets added at one end and dropped at the other, see {@link PetListLoader.Window#shift}.
+     * The moves are known, so nothing is compared and the change is applied right away. If the
+     * old pets aren't the ones shown, or a submit is still being compared, they are submitted
+     * instead, see {@link #submitPets}.
+     */
+    public void shiftPets(PetListSnapshot oldSnapshot, PetListSnapshot newSnapshot, int shift) {
+        if (oldSnapshot != mSnapshot || mShownGeneration != mGeneration) {
+            submitPets(newSnapshot);
+            return;
+        }
+        mShownGeneration = ++mGeneration;
+        mSnapshot = newSnapshot;
+
+        int oldSize = oldSnapshot.size();
+        int newSize = newSnapshot.size();
+        if (shift >= 0) {
+            // A page before the pets, and the pets past the end dropped
+            int kept = newSize - shift;
+            if (kept < oldSize) {
+                notifyItemRangeRemoved(kept, oldSize - kept);
+            }
+            if (shift > 0) {
+                notifyItemRangeInserted(0, shift);
+            }
+        } else {
+            // A page after the pets, and the pets before the start dropped
+            int kept = oldSize + shift;
+            notifyItemRangeRemoved(0, -shift);
+            if (newSize > kept) {
+                notifyItemRangeInserted(kept, newSize - kept);
+            }
+        }
+    }
+
+    /**
+     * Set the sections of the pets, see {@link SectionIndexer}. The pets must be ordered by
+     * name.
+     *
+     * @param sections first letter of the names in each section, in order
+     */
+    public void setSections(String[] sections) {
+        mSections = sections;
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mSections;
+    }
+
+    /**
+     * Return the position of the first pet shown whose name is at or after the given section,
+     * which is {@link #getItemCount()} if there is none. The section may start before that
+     * pet if it is the first pet shown.
+     */
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        if (mSections.length == 0) {
+            return 0;
+        }
+        String section = mSections[Math.max(0, Math.min(sectionIndex, mSections.length - 1))];
+        int low = 0;
+        int high = mSnapshot.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareCodePoints(mSnapshot.getName(middle), section) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        if (mSections.length == 0 || position < 0 || position >= mSnapshot.size()) {
+            return 0;
+        }
+        String name = mSnapshot.getName(position);
+        int low = 0;
+        int high = mSections.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareCodePoints(mSections[middle], name) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        // The last section starting at or before the name
+        return Math.max(0, low - 1);
+    }
+
+    /**
+     * Compare two texts by their code points, the order SQLite sorts the names in. It differs
+     * from {@link String#compareTo} for characters that take two chars.
      */
-    public PetCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0 /* flags */);
+    static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int codePointA = a.codePointAt(i);
+            int codePointB = b.codePointAt(j);
+            if (codePointA != codePointB) {
+                return codePointA < codePointB ? -1 : 1;
+            }
+            i += Character.charCount(codePointA);
+            j += Character.charCount(codePointB);
+        }
+        return (a.length() - i) - (b.length() - j);
     }
 
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
+     * @param parent   The parent to which the new view is attached to
+     * @param viewType The view type of the new view
+     * @return a view holder for the newly created list item view.
      */
     @Override
-    //inflate a blank listview item
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.list_item, parent, false);
+        return new ViewHolder(view);
     }
 
     /**
-     * This method binds the pet data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current pet can be set on the name TextView
-     * in the list item layout.
+     * This method binds the pet data at the given position to the given list item. For example,
+     * the name for the current pet can be set on the name TextView in the list item layout.
      *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * @param holder   The view holder of the list item
+     * @param position The position of the pet in the list
      */
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        // Find fields to populate in inflated template
-        TextView nameTextView = (TextView) view.findViewById(R.id.name);
-        TextView breedTextView = (TextView) view.findViewById(R.id.breed);
-        // Extract properties from cursor
-        String nameColumnIndex = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME));
-        String breedColumnIndex = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED));
-        // Populate fields with extracted properties
-        nameTextView.setText(nameColumnIndex);
-        breedTextView.setText(String.valueOf(breedColumnIndex));
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        // The snapshot hands its packed characters straight to the views, so binding a row
+        // doesn't allocate a String for the name or breed
+        mSnapshot.bindName(position, holder.nameTextView);
+        if (!mSnapshot.bindBreed(position, holder.breedTextView)) {
+            holder.breedTextView.setText(R.string.breed_unknown);
+        }
+        if (!sFirstRowBound) {
+            sFirstRowBound = true;
+            PetStartupTrace.mark(PetContract.KEY_STARTUP_FIRST_ROW_BOUND);
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return mSnapshot.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mSnapshot.getId(position);
+    }
+
+    /**
+     * Holds the views of one list item, so they are only looked up once.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        final TextView nameTextView;
+        final TextView breedTextView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            nameTextView = (TextView) itemView.findViewById(R.id.name);
+            breedTextView = (TextView) itemView.findViewById(R.id.breed);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mClickListener.onPetClick(mSnapshot, position);
+            }
+        }
+    }
+
+    /**
+     * Compares two snapshots by pet id, and by name and breed for pets that are in both.
+     */
+    private static class SnapshotDiffCallback extends DiffUtil.Callback {
+
+        private final PetListSnapshot mOld;
+        private final PetListSnapshot mNew;
+
+        SnapshotDiffCallback(PetListSnapshot oldSnapshot, PetListSnapshot newSnapshot) {
+            mOld = oldSnapshot;
+            mNew = newSnapshot;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.getId(oldItemPosition) == mNew.getId(newItemPosition);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.sameContents(oldItemPosition, mNew, newItemPosition);
+        }
     }
 }
@@ -0,0 +1,379 @@
+package com.example.android.pets;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQueryBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Loads the pet list as one window of pets, see {@link Window}. The window starts with one page
+ * and grows a page at a time as the list asks for more, see {@link #loadMore} and
+ * {@link #loadEarlier}, each page read after the last pet or before the first pet of the window.
+ * A jump, see {@link #jumpTo}, starts a new window at a name, so the pets before it are never
+ * read to get there.
+ * <p>
+ * The window holds a bounded number of pages. Once it is full, a page added at one end drops
+ * as many pets from the other end, the one furthest from where the list is scrolled, and they
+ * are read again as a page if the list is scrolled back to them. However far the list is
+ * scrolled, the window therefore takes the same memory, and so does the snapshot the list
+ * compares it with.
+ * <p>
+ * When any pet changes, the window is read again with one query, rather than one query per
+ * page, from its first pet and no further than the pets it holds, so the list gets one new
+ * snapshot to compare with the pets it shows. The queries and the copies out of the cursors
+ * all happen on the loader's background thread, and the cursors are closed before the window is
+ * delivered, so the main thread never touches them.
+ */
+public class PetListLoader extends AsyncTaskLoader<PetListLoader.Window> {
+
+    /** How a window was loaded: read from its start, or grown by a page at either end */
+    static final int LOAD_READ = 0;
+    static final int LOAD_EARLIER = 1;
+    static final int LOAD_LATER = 2;
+
+    /**
+     * The pets of the list loaded so far, all the pets from one pet of the list to another.
+     */
+    public static final class Window {
+
+        /** The pets, in list order */
+        public final PetListSnapshot pets;
+
+        /** Whether the last pet of the list is in the window */
+        public final boolean atEnd;
+
+        /** Where the window starts, at and including this pet, or null at the start */
+        final Position start;
+
+        /** Number of changes to the pets seen before the window was read */
+        final int changes;
+
+        /** Number of jumps made before the window was read */
+        final int jumps;
+
+        /** How the window was loaded, one of the LOAD_ constants */
+        final int load;
+
+        /**
+         * The pets of the window this one was grown from, or null if it was read. They are the
+         * pets of this window moved by {@link #shift}, with the pets of the new page added at
+         * one end and those past the window's size dropped at the other, and none changed.
+         */
+        public final PetListSnapshot grownFrom;
+
+        /**
+         * Number of positions the pets of {@link #grownFrom} moved by: the size of the page
+         * added before them, or minus the number of pets dropped before them.
+         */
+        public final int shift;
+
+        Window(PetListSnapshot pets, Position start, boolean atEnd, int changes, int jumps) {
+            this(pets, start, atEnd, changes, jumps, LOAD_READ, null, 0);
+        }
+
+        Window(PetListSnapshot pets, Position start, boolean atEnd, int changes, int jumps,
+               int load, PetListSnapshot grownFrom, int shift) {
+            this.pets = pets;
+            this.start = start;
+            this.atEnd = atEnd;
+            this.changes = changes;
+            this.jumps = jumps;
+            this.load = load;
+            this.grownFrom = grownFrom;
+            this.shift = shift;
+        }
+
+        /** Return true if the first pet of the list is in the window */
+        public boolean atStart() {
+            return start == null;
+        }
+    }
+
+    /**
+     * A place in the list, given by the values of a pet the list is ordered by.
+     */
+    static final class Position {
+
+        final long id;
+        final String name;
+        final int weight;
+
+        Position(long id, String name, int weight) {
+            this.id = id;
+            this.name = name;
+            this.weight = weight;
+        }
+
+        /** Return the place of the pet at the given position of the given pets */
+        static Position of(PetListSnapshot pets, int position) {
+            return new Position(pets.getId(position), pets.getName(position),
+                    pets.getWeight(position));
+        }
+    }
+
+    /** Filters and sort key of the list, copied for the query of every page */
+    private final PetQueryBuilder mQuery;
+
+    /** Number of pets read by the first page, and added by every page after it */
+    private final int mPageSize;
+
+    /** Number of pets the window holds at most */
+    private final int mMaxSize;
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    private boolean mObserving;
+
+    /** The last window delivered, which the next page is added to. Guarded by this */
+    private Window mWindow;
+
+    /** Number of pets wanted after the last pet of the window, or 0. Guarded by this */
+    private int mWantLater;
+
+    /** Whether a page before the window is wanted. Guarded by this */
+    private boolean mWantEarlier;
+
+    /** Number of changes to the pets seen so far. Guarded by this */
+    private int mChanges;
+
+    /** Number of jumps so far, and the start of the window of the last one. Guarded by this */
+    private int mJumps;
+    private Position mJumpStart;
+
+    /**
+     * @param context  of the app
+     * @param query    filters and sort key of the list, without a page
+     * @param pageSize number of pets to read at a time
+     * @param maxPages number of pages the window holds at most, at least 2 so a page can be
+     *                 added while the list shows the one before
+     */
+    public PetListLoader(Context context, PetQueryBuilder query, int pageSize, int maxPages) {
+        super(context);
+        if (maxPages < 2) {
+            throw new IllegalArgumentException("Window requires at least 2 pages: " + maxPages);
+        }
+        mQuery = new PetQueryBuilder(query);
+        mPageSize = pageSize;
+        mMaxSize = pageSize * maxPages;
+    }
+
+    /**
+     * Grow the window after its last pet by at least the given number of pets, dropping pets
+     * before them if it is full. Does nothing if the window already holds the last pet of the
+     * list, or is still growing.
+     */
+    public void loadMore(int count) {
+        synchronized (this) {
+            if (mWindow == null || mWindow.atEnd || mWantLater > 0) {
+                return;
+            }
+            mWantLater = Math.min(Math.max(count, mPageSize), mMaxSize);
+        }
+        forceLoad();
+    }
+
+    /**
+     * Grow the window by a page before its first pet, dropping pets after it if it is full.
+     * Does nothing if the window already holds the first pet of the list, or is still growing.
+     */
+    public void loadEarlier() {
+        synchronized (this) {
+            if (mWindow == null || mWindow.atStart() || mWantEarlier) {
+                return;
+            }
+            mWantEarlier = true;
+        }
+        forceLoad();
+    }
+
+    /**
+     * Start a new window of a page at the first pet whose name is at least the given name. The
+     * list must be ordered by name.
+     */
+    public void jumpTo(String name) {
+        synchronized (this) {
+            mJumps++;
+            // Every pet has an id of at least 1, so this is the first pet with the name
+            mJumpStart = new Position(0, name, 0);
+            mWantLater = 0;
+            mWantEarlier = false;
+        }
+        forceLoad();
+    }
+
+    @Override
+    public Window loadInBackground() {
+        Window window;
+        int wantLater;
+        boolean wantEarlier;
+        int changes;
+        int jumps;
+        Position jumpStart;
+        synchronized (this) {
+            window = mWindow;
+            wantLater = mWantLater;
+            wantEarlier = mWantEarlier;
+            changes = mChanges;
+            jumps = mJumps;
+            jumpStart = mJumpStart;
+        }
+
+        if (window == null || window.jumps != jumps || window.changes != changes) {
+            // Read the window again from its start, as any of its pets may have changed, but
+            // only as many pets as it holds, which is never more than it can hold. The start
+            // is included, so the page starts right after the place before it.
+            Position start;
+            int size;
+            if (window == null || window.jumps != jumps) {
+                start = jumpStart;
+                size = mPageSize;
+            } else {
+                start = window.start;
+                size = Math.max(window.pets.size(), mPageSize);
+            }
+            PetQueryBuilder query = new PetQueryBuilder(mQuery).pageSize(size);
+            if (start != null) {
+                query.after(start.id - 1, start.name, start.weight);
+            }
+            PetListSnapshot pets = query(query.build());
+            return new Window(pets, start, pets.size() < size, changes, jumps);
+        }
+
+        if (wantEarlier && !window.atStart()) {
+            // Add the page before the start of the window, which is then the start of the list
+            // unless the page is full. The pets past the window's size are dropped from its
+            // end, furthest from the start the list is scrolled to.
+            Position start = window.start;
+            PetListSnapshot page = query(new PetQueryBuilder(mQuery).pageSize(mPageSize)
+                    .before(start.id, start.name, start.weight).build());
+            Position newStart = page.size() < mPageSize ? null : Position.of(page, 0);
+            PetListSnapshot pets = PetListSnapshot.concat(Arrays.asList(page, window.pets));
+            boolean atEnd = window.atEnd;
+            if (pets.size() > mMaxSize) {
+                pets = pets.slice(0, mMaxSize);
+                atEnd = false;
+            }
+            return new Window(pets, newStart, atEnd, changes, jumps, LOAD_EARLIER, window.pets,
+                    page.size());
+        }
+
+        if (window.atEnd || wantLater <= 0) {
+            return window;
+        }
+
+        // Add the next page after the last pet of the window, and drop the pets past the
+        // window's size from its start, furthest from the end the list is scrolled to
+        Position last = Position.of(window.pets, window.pets.size() - 1);
+        PetListSnapshot page = query(new PetQueryBuilder(mQuery).pageSize(wantLater)
+                .after(last.id, last.name, last.weight).build());
+        PetListSnapshot pets = PetListSnapshot.concat(Arrays.asList(window.pets, page));
+        Position start = window.start;
+        int dropped = Math.max(0, pets.size() - mMaxSize);
+        if (dropped > 0) {
+            start = Position.of(pets, dropped);
+            pets = pets.slice(dropped, pets.size());
+        }
+        return new Window(pets, start, page.size() < wantLater, changes, jumps, LOAD_LATER,
+                window.pets, -dropped);
+    }
+
+    /**
+     * Read the pets of the given page URI.
+     */
+    private PetListSnapshot query(Uri pageUri) {
+        Cursor cursor = getContext().getContentResolver().query(pageUri,
+                PetEntry.LIST_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return PetListSnapshot.EMPTY;
+        }
+        try {
+            return PetListSnapshot.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        // Any change to the pets table can change what is in the window, so the next load
+        // reads all of it again
+        synchronized (this) {
+            mChanges++;
+        }
+        super.onContentChanged();
+    }
+
+    @Override
+    public void deliverResult(Window window) {
+        if (isReset()) {
+            return;
+        }
+        boolean needsLoad;
+        synchronized (this) {
+            // A new window grown at one end is the page that end asked for. A window that was
+            // only read again leaves the pages asked for still wanted.
+            if (window != mWindow) {
+                if (window.load == LOAD_EARLIER) {
+                    mWantEarlier = false;
+                } else if (window.load == LOAD_LATER) {
+                    mWantLater = 0;
+                }
+            }
+            mWindow = window;
+            needsLoad = window.jumps != mJumps || window.changes != mChanges
+                    || (mWantEarlier && !window.atStart())
+                    || (mWantLater > 0 && !window.atEnd);
+        }
+        if (isStarted()) {
+            super.deliverResult(window);
+            // Load what the window still lacks, such as a page asked for while it was read
+            // again, or cancelled when the loader stopped
+            if (needsLoad) {
+                forceLoad();
+            }
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            getContext().getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true,
+                    mObserver);
+            mObserving = true;
+        }
+        // Every change is counted, and the count decides what to load
+        takeContentChanged();
+        Window window;
+        synchronized (this) {
+            window = mWindow;
+        }
+        if (window != null) {
+            deliverResult(window);
+        } else {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        synchronized (this) {
+            mWindow = null;
+        }
+    }
+}
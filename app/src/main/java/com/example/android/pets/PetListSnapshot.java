@@ -0,0 +1,325 @@
+package com.example.android.pets;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable copy of the id, name, breed, gender, weight and version of a list of pets, read
+ * from a {@link Cursor} on a background thread. Because it never changes and holds no cursor,
+ * it can be read by the main thread and compared with another snapshot on a background thread
+ * at the same time.
+ * <p>
+ * The names and breeds are packed into one char array each rather than kept as a String per
+ * pet, so a snapshot is a handful of objects no matter how many pets it holds, and binding a
+ * row can hand the characters straight to a {@link TextView} without allocating. The gender,
+ * weight and version are not shown in the list, but are kept so a pet that is opened can be
+ * shown and edited right away, see {@link EditorActivity#putPet}.
+ */
+public final class PetListSnapshot {
+
+    /** A snapshot with no pets */
+    public static final PetListSnapshot EMPTY = new PetListSnapshot(new long[0],
+            PackedText.EMPTY, PackedText.EMPTY, new int[0], new int[0], new long[0]);
+
+    private final long[] mIds;
+    private final PackedText mNames;
+    private final PackedText mBreeds;
+    private final int[] mGenders;
+    private final int[] mWeights;
+    private final long[] mVersions;
+
+    private PetListSnapshot(long[] ids, PackedText names, PackedText breeds, int[] genders,
+                            int[] weights, long[] versions) {
+        mIds = ids;
+        mNames = names;
+        mBreeds = breeds;
+        mGenders = genders;
+        mWeights = weights;
+        mVersions = versions;
+    }
+
+    /**
+     * Copy every row of the given cursor, which must contain the {@link PetEntry#_ID},
+     * {@link PetEntry#COLUMN_PET_NAME}, {@link PetEntry#COLUMN_PET_BREED},
+     * {@link PetEntry#COLUMN_PET_GENDER}, {@link PetEntry#COLUMN_PET_WEIGHT} and
+     * {@link PetEntry#COLUMN_PET_VERSION} columns.
+     */
+    public static PetListSnapshot fromCursor(Cursor cursor) {
+        int count = cursor.getCount();
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        // Resolve the columns once for the whole cursor, not once per row
+        int idColumnIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+        int breedColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+        int genderColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER);
+        int weightColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT);
+        int versionColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_VERSION);
+
+        long[] ids = new long[count];
+        int[] genders = new int[count];
+        int[] weights = new int[count];
+        long[] versions = new long[count];
+        PackedText.Builder names = new PackedText.Builder(count);
+        PackedText.Builder breeds = new PackedText.Builder(count);
+
+        // One buffer is reused to copy every name and breed out of the cursor window
+        CharArrayBuffer buffer = new CharArrayBuffer(64);
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getLong(idColumnIndex);
+            names.append(cursor, nameColumnIndex, buffer);
+            breeds.append(cursor, breedColumnIndex, buffer);
+            genders[i] = cursor.getInt(genderColumnIndex);
+            weights[i] = cursor.getInt(weightColumnIndex);
+            versions[i] = cursor.getLong(versionColumnIndex);
+        }
+        return new PetListSnapshot(ids, names.build(), breeds.build(), genders, weights,
+                versions);
+    }
+
+    /**
+     * Join the given snapshots, in order, into one.
+     */
+    public static PetListSnapshot concat(List<PetListSnapshot> snapshots) {
+        if (snapshots.size() == 1) {
+            return snapshots.get(0);
+        }
+
+        int count = 0;
+        PackedText[] names = new PackedText[snapshots.size()];
+        PackedText[] breeds = new PackedText[snapshots.size()];
+        for (int i = 0; i < snapshots.size(); i++) {
+            PetListSnapshot snapshot = snapshots.get(i);
+            count += snapshot.size();
+            names[i] = snapshot.mNames;
+            breeds[i] = snapshot.mBreeds;
+        }
+
+        long[] ids = new long[count];
+        int[] genders = new int[count];
+        int[] weights = new int[count];
+        long[] versions = new long[count];
+        int offset = 0;
+        for (PetListSnapshot snapshot : snapshots) {
+            System.arraycopy(snapshot.mIds, 0, ids, offset, snapshot.size());
+            System.arraycopy(snapshot.mGenders, 0, genders, offset, snapshot.size());
+            System.arraycopy(snapshot.mWeights, 0, weights, offset, snapshot.size());
+            System.arraycopy(snapshot.mVersions, 0, versions, offset, snapshot.size());
+            offset += snapshot.size();
+        }
+        return new PetListSnapshot(ids, PackedText.concat(names, count),
+                PackedText.concat(breeds, count), genders, weights, versions);
+    }
+
+    /**
+     * Return the pets from the given position, included, to the given position, excluded, as a
+     * snapshot of their own, which doesn't keep the other pets in memory.
+     */
+    public PetListSnapshot slice(int from, int to) {
+        if (from == 0 && to == size()) {
+            return this;
+        }
+        return new PetListSnapshot(Arrays.copyOfRange(mIds, from, to),
+                mNames.slice(from, to), mBreeds.slice(from, to),
+                Arrays.copyOfRange(mGenders, from, to), Arrays.copyOfRange(mWeights, from, to),
+                Arrays.copyOfRange(mVersions, from, to));
+    }
+
+    /** Return the number of pets in the snapshot */
+    public int size() {
+        return mIds.length;
+    }
+
+    /** Return the id of the pet at the given position */
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    /** Return the name of the pet at the given position */
+    public String getName(int position) {
+        return mNames.get(position);
+    }
+
+    /** Return the breed of the pet at the given position, which may be null */
+    public String getBreed(int position) {
+        return mBreeds.get(position);
+    }
+
+    /** Return the gender of the pet at the given position */
+    public int getGender(int position) {
+        return mGenders[position];
+    }
+
+    /** Return the weight of the pet at the given position */
+    public int getWeight(int position) {
+        return mWeights[position];
+    }
+
+    /** Return the version of the pet at the given position */
+    public long getVersion(int position) {
+        return mVersions[position];
+    }
+
+    /**
+     * Show the name of the pet at the given position in the given view, without allocating.
+     */
+    public void bindName(int position, TextView view) {
+        mNames.bind(position, view);
+    }
+
+    /**
+     * Show the breed of the pet at the given position in the given view, without allocating.
+     * Return false, leaving the view alone, if the pet has no breed.
+     */
+    public boolean bindBreed(int position, TextView view) {
+        return mBreeds.bind(position, view);
+    }
+
+    /**
+     * Return the id of the last pet in the snapshot, or -1 if it is empty.
+     */
+    public long getLastId() {
+        return mIds.length == 0 ? -1 : mIds[mIds.length - 1];
+    }
+
+    /**
+     * Return true if the pets at the given positions of this and the other snapshot show the
+     * same name and breed. The gender, weight and version are not compared, since the list
+     * doesn't show them.
+     */
+    boolean sameContents(int position, PetListSnapshot other, int otherPosition) {
+        return mNames.same(position, other.mNames, otherPosition)
+                && mBreeds.same(position, other.mBreeds, otherPosition);
+    }
+
+    /**
+     * A list of nullable strings packed into one char array. String i is the {@code
+     * lengths[i]} chars starting at {@code starts[i]}, or null if its length is -1.
+     */
+    private static final class PackedText {
+
+        static final PackedText EMPTY = new PackedText(new char[0], new int[0], new int[0]);
+
+        final char[] chars;
+        final int[] starts;
+        final int[] lengths;
+
+        PackedText(char[] chars, int[] starts, int[] lengths) {
+            this.chars = chars;
+            this.starts = starts;
+            this.lengths = lengths;
+        }
+
+        String get(int i) {
+            return lengths[i] < 0 ? null : new String(chars, starts[i], lengths[i]);
+        }
+
+        boolean bind(int i, TextView view) {
+            if (lengths[i] < 0) {
+                return false;
+            }
+            view.setText(chars, starts[i], lengths[i]);
+            return true;
+        }
+
+        boolean same(int i, PackedText other, int j) {
+            int length = lengths[i];
+            if (length != other.lengths[j]) {
+                return false;
+            }
+            for (int k = 0; k < length; k++) {
+                if (chars[starts[i] + k] != other.chars[other.starts[j] + k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Return the strings from the given index, included, to the given index, excluded.
+         * The strings are packed in order, so theirs are the chars from the start of the
+         * first to the start of the one after the last.
+         */
+        PackedText slice(int from, int to) {
+            int charStart = starts.length == from ? chars.length : starts[from];
+            int charEnd = starts.length == to ? chars.length : starts[to];
+            int[] sliceStarts = new int[to - from];
+            for (int i = from; i < to; i++) {
+                sliceStarts[i - from] = starts[i] - charStart;
+            }
+            return new PackedText(Arrays.copyOfRange(chars, charStart, charEnd), sliceStarts,
+                    Arrays.copyOfRange(lengths, from, to));
+        }
+
+        static PackedText concat(PackedText[] parts, int count) {
+            int charCount = 0;
+            for (PackedText part : parts) {
+                charCount += part.chars.length;
+            }
+
+            char[] chars = new char[charCount];
+            int[] starts = new int[count];
+            int[] lengths = new int[count];
+            int charOffset = 0;
+            int offset = 0;
+            for (PackedText part : parts) {
+                int size = part.lengths.length;
+                System.arraycopy(part.chars, 0, chars, charOffset, part.chars.length);
+                System.arraycopy(part.lengths, 0, lengths, offset, size);
+                for (int i = 0; i < size; i++) {
+                    starts[offset + i] = part.starts[i] + charOffset;
+                }
+                charOffset += part.chars.length;
+                offset += size;
+            }
+            return new PackedText(chars, starts, lengths);
+        }
+
+        /**
+         * Packs strings copied out of a cursor, one row at a time.
+         */
+        static final class Builder {
+
+            private char[] mChars = new char[256];
+            private int mCharCount;
+            private final int[] mStarts;
+            private final int[] mLengths;
+            private int mCount;
+
+            Builder(int count) {
+                mStarts = new int[count];
+                mLengths = new int[count];
+            }
+
+            void append(Cursor cursor, int columnIndex, CharArrayBuffer buffer) {
+                if (cursor.isNull(columnIndex)) {
+                    mStarts[mCount] = mCharCount;
+                    mLengths[mCount++] = -1;
+                    return;
+                }
+
+                cursor.copyStringToBuffer(columnIndex, buffer);
+                int length = buffer.sizeCopied;
+                if (mCharCount + length > mChars.length) {
+                    mChars = Arrays.copyOf(mChars, Math.max(mChars.length * 2, mCharCount + length));
+                }
+                System.arraycopy(buffer.data, 0, mChars, mCharCount, length);
+                mStarts[mCount] = mCharCount;
+                mLengths[mCount++] = length;
+                mCharCount += length;
+            }
+
+            PackedText build() {
+                return new PackedText(Arrays.copyOf(mChars, mCharCount), mStarts, mLengths);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetVersionConflictException;
+
+import java.util.HashMap;
+
+/**
+ * Runs the inserts, updates and deletes of the screens on a background thread, so the main
+ * thread never waits on the database, and reports each one back on the main thread once it
+ * is committed.
+ * <p>
+ * There is a single queue for the whole app, and its writes run one at a time in the order
+ * they were queued. Two writes to the same pet can therefore never overtake each other, even
+ * when they come from different screens, and nothing is lost to it since the database only
+ * has one writer anyway.
+ * <p>
+ * Each write gets a request ID. A screen that is recreated while its write runs, after a
+ * rotation for instance, detaches the callback of the old instance when it is destroyed and
+ * attaches the new instance to the same request, so the result is reported to the screen that
+ * is showing rather than to the destroyed one. Writes are queued, attached and reported on the
+ * main thread.
+ */
+public final class PetWriteQueue {
+
+    private static final String LOG_TAG = PetWriteQueue.class.getSimpleName();
+
+    /**
+     * Rows reported for an update of a pet that changed since the version it expected, see
+     * {@link PetEntry#buildVersionedUri}. Any other failure of an update is reported as 0 rows.
+     */
+    public static final int CONFLICT = -1;
+
+    /** Request ID that is never the ID of a write */
+    public static final long NO_REQUEST = 0;
+
+    /**
+     * Called on the main thread when a write is done.
+     */
+    public interface Callback {
+
+        /**
+         * @param uri  URI of the inserted pet, or the URI that was updated or deleted. Null if
+         *             an insert failed
+         * @param rows number of pets written, 0 if the write failed, or {@link #CONFLICT}
+         */
+        void onWriteComplete(Uri uri, int rows);
+    }
+
+    private static PetWriteQueue sInstance;
+
+    private final ContentResolver mResolver;
+
+    /** Handler of the thread the writes run on, in order */
+    private final Handler mWriteHandler;
+
+    /** Handler of the main thread, the callbacks run on */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Callbacks of the writes not reported yet, by request ID. A detached write maps to null
+     * until a callback is attached again. Only used on the main thread
+     */
+    private final HashMap<Long, Callback> mCallbacks = new HashMap<>();
+
+    /** Results of detached writes that completed, by request ID. Only used on the main thread */
+    private final HashMap<Long, Result> mResults = new HashMap<>();
+
+    /**
+     * Request ID of the last write. The ID of the process is in the high bits, so the ID a
+     * screen saved before its process was killed is never taken for a write of the new one.
+     */
+    private long mLastRequest = (long) Process.myPid() << 32;
+
+    private PetWriteQueue(ContentResolver resolver) {
+        mResolver = resolver;
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWriteHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Return the write queue of the app.
+     */
+    public static synchronized PetWriteQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWriteQueue(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue the insert of a new pet with the given values.
+     *
+     * @return the request ID of the insert
+     */
+    public long insert(final ContentValues values, Callback callback) {
+        final ContentValues copy = new ContentValues(values);
+        final long request = register(callback);
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Uri newUri = null;
+                try {
+                    newUri = mResolver.insert(PetEntry.CONTENT_URI, copy);
+                } catch (IllegalArgumentException | SQLException e) {
+                    Log.e(LOG_TAG, "Failed to insert pet", e);
+                }
+                complete(request, newUri, newUri == null ? 0 : 1);
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Queue the update of the pet, or pets, at the given URI with the given values.
+     *
+     * @return the request ID of the update
+     */
+    public long update(final Uri uri, ContentValues values, Callback callback) {
+        final ContentValues copy = new ContentValues(values);
+        final long request = register(callback);
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int rows = 0;
+                try {
+                    rows = mResolver.update(uri, copy, null, null);
+                } catch (PetVersionConflictException e) {
+                    Log.w(LOG_TAG, e.getMessage());
+                    rows = CONFLICT;
+                } catch (IllegalArgumentException | IllegalStateException | SQLException e) {
+                    Log.e(LOG_TAG, "Failed to update " + uri, e);
+                }
+                complete(request, uri, rows);
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Queue the delete of the pet, or pets, at the given URI.
+     *
+     * @return the request ID of the delete
+     */
+    public long delete(final Uri uri, Callback callback) {
+        final long request = register(callback);
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int rows = 0;
+                try {
+                    rows = mResolver.delete(uri, null, null);
+                } catch (IllegalArgumentException | SQLException e) {
+                    Log.e(LOG_TAG, "Failed to delete " + uri, e);
+                }
+                complete(request, uri, rows);
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Report the write with the given request ID to the given callback from now on, instead of
+     * the callback it had. If the write already completed while it was detached, the callback
+     * is called right away.
+     *
+     * @return false if the write is unknown, because it was already reported, or was queued
+     * by a process that has since been killed. Whether that write was committed then has to
+     * be read from the database.
+     */
+    public boolean attach(long request, Callback callback) {
+        if (!mCallbacks.containsKey(request)) {
+            return false;
+        }
+        Result result = mResults.remove(request);
+        if (result == null) {
+            mCallbacks.put(request, callback);
+        } else {
+            mCallbacks.remove(request);
+            callback.onWriteComplete(result.uri, result.rows);
+        }
+        return true;
+    }
+
+    /**
+     * Stop reporting the write with the given request ID to its callback, and keep its result
+     * until a callback is attached again, see {@link #attach}. Call it when the screen that
+     * queued the write is destroyed to be recreated.
+     */
+    public void detach(long request) {
+        if (mCallbacks.containsKey(request)) {
+            mCallbacks.put(request, null);
+        }
+    }
+
+    /**
+     * Never report the write with the given request ID. The write itself still runs. Call it
+     * when the screen that queued the write is gone for good.
+     */
+    public void forget(long request) {
+        mCallbacks.remove(request);
+        mResults.remove(request);
+    }
+
+    private long register(Callback callback) {
+        long request = ++mLastRequest;
+        if (callback != null) {
+            mCallbacks.put(request, callback);
+        }
+        return request;
+    }
+
+    private void complete(final long request, final Uri uri, final int rows) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCallbacks.containsKey(request)) {
+                    // Queued without a callback, or forgotten
+                    return;
+                }
+                Callback callback = mCallbacks.get(request);
+                if (callback == null) {
+                    // Detached, so kept for the callback that attaches next
+                    mResults.put(request, new Result(uri, rows));
+                    return;
+                }
+                mCallbacks.remove(request);
+                callback.onWriteComplete(uri, rows);
+            }
+        });
+    }
+
+    /** Result of a write, kept while no callback is attached */
+    private static final class Result {
+
+        final Uri uri;
+        final int rows;
+
+        Result(Uri uri, int rows) {
+            this.uri = uri;
+            this.rows = rows;
+        }
+    }
+}
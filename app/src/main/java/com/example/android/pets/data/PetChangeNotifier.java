@@ -0,0 +1,116 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Sends the change notifications of {@link PetProvider} in coalesced bursts.
+ * <p>
+ * The first change after a quiet period opens a window, and every URI changed during that
+ * window is sent once when it closes. A burst of writes therefore makes each loader reload at
+ * most once per window. Notifying the table URI also reaches every row URI below it, so once
+ * the table URI is pending the row URIs are dropped, and too many pending rows are collapsed
+ * into the table URI.
+ */
+class PetChangeNotifier {
+
+    /** Length of the coalescing window in milliseconds */
+    static final long WINDOW_MILLIS = 100;
+
+    /** Number of pending row URIs above which a single table notification is sent instead */
+    static final int MAX_PENDING_ROWS = 64;
+
+    private final ContentResolver mResolver;
+
+    /** Thread the notifications are sent from, so writers never wait on them */
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    /** URIs changed since the window opened. Guarded by this */
+    private final Set<Uri> mPending = new LinkedHashSet<>();
+
+    /** Whether the table URI changed since the window opened. Guarded by this */
+    private boolean mTablePending;
+
+    /** Whether a window is open and a flush is scheduled. Guarded by this */
+    private boolean mScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    PetChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+        mThread = new HandlerThread(PetChangeNotifier.class.getSimpleName(),
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queue a notification for the given URI, which is either {@link PetEntry#CONTENT_URI} or
+     * the URI of a single pet.
+     */
+    synchronized void notifyChange(Uri uri) {
+        if (PetEntry.CONTENT_URI.equals(uri)) {
+            mTablePending = true;
+            mPending.clear();
+        } else if (!mTablePending) {
+            mPending.add(uri);
+            if (mPending.size() > MAX_PENDING_ROWS) {
+                mTablePending = true;
+                mPending.clear();
+            }
+        }
+
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mFlush, WINDOW_MILLIS);
+        }
+    }
+
+    /**
+     * Close the window and send every pending notification once.
+     */
+    private void flush() {
+        ArrayList<Uri> uris;
+        synchronized (this) {
+            if (mTablePending) {
+                uris = new ArrayList<>(1);
+                uris.add(PetEntry.CONTENT_URI);
+            } else {
+                uris = new ArrayList<>(mPending);
+            }
+            mPending.clear();
+            mTablePending = false;
+            mScheduled = false;
+        }
+
+        // Sent outside the lock, so writers can keep queueing while the resolver is busy
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Send whatever is pending and stop the notification thread.
+     */
+    void shutdown() {
+        mHandler.removeCallbacks(mFlush);
+        flush();
+        mThread.quit();
+    }
+}
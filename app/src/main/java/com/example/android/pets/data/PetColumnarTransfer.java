@@ -0,0 +1,195 @@
+package com.example.android.pets.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+
+/**
+ * Reads and writes pets as columnar Bundles, for {@link PetContract#METHOD_READ_PETS_COLUMNAR}
+ * and {@link PetContract#METHOD_WRITE_PETS_COLUMNAR}.
+ * <p>
+ * Every column is one primitive array, and the names and breeds of all pets are packed into
+ * one String each with an array of lengths. A Bundle of a thousand pets is therefore a handful
+ * of objects, parcelled as a few flat arrays, where a Cursor window or a ContentValues per pet
+ * would box every number. Writes are checked column by column on the primitives.
+ */
+class PetColumnarTransfer {
+
+    /** Number of pets read when the caller doesn't ask for a limit */
+    static final int DEFAULT_READ_LIMIT = 1000;
+
+    /**
+     * Most pets read at a time. A Bundle returned by call() has to fit in one binder
+     * transaction, which is limited to 1 MB for the whole process.
+     */
+    static final int MAX_READ_LIMIT = 2000;
+
+    private static final String SQL_READ = "SELECT " + PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT
+            + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " > ? AND " + PetProvider.LIVE_SELECTION
+            + " ORDER BY " + PetEntry._ID + " LIMIT ?";
+
+    private final PetDbHelper mDbHelper;
+    private final PetStatementCache mStatementCache;
+
+    PetColumnarTransfer(PetDbHelper dbHelper, PetStatementCache statementCache) {
+        mDbHelper = dbHelper;
+        mStatementCache = statementCache;
+    }
+
+    /**
+     * Read the pets after the given id, in id order, into a columnar Bundle.
+     */
+    Bundle read(long afterId, int limit) {
+        if (limit <= 0 || limit > MAX_READ_LIMIT) {
+            throw new IllegalArgumentException("Invalid columnar read limit " + limit);
+        }
+
+        Cursor cursor = mDbHelper.getReadableDatabase().rawQuery(SQL_READ,
+                new String[]{String.valueOf(afterId), String.valueOf(limit)});
+        try {
+            int count = cursor.getCount();
+            long[] ids = new long[count];
+            int[] genders = new int[count];
+            int[] weights = new int[count];
+            int[] nameLengths = new int[count];
+            int[] breedLengths = new int[count];
+            StringBuilder names = new StringBuilder(count * 8);
+            StringBuilder breeds = new StringBuilder(count * 8);
+
+            // One buffer is reused to copy every name and breed out of the cursor window
+            CharArrayBuffer buffer = new CharArrayBuffer(64);
+            for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+                ids[i] = cursor.getLong(0);
+                nameLengths[i] = append(cursor, 1, buffer, names);
+                breedLengths[i] = append(cursor, 2, buffer, breeds);
+                genders[i] = cursor.getInt(3);
+                weights[i] = cursor.getInt(4);
+            }
+
+            Bundle pets = new Bundle();
+            pets.putLongArray(PetContract.KEY_COLUMN_IDS, ids);
+            pets.putString(PetContract.KEY_COLUMN_NAMES, names.toString());
+            pets.putIntArray(PetContract.KEY_COLUMN_NAME_LENGTHS, nameLengths);
+            pets.putString(PetContract.KEY_COLUMN_BREEDS, breeds.toString());
+            pets.putIntArray(PetContract.KEY_COLUMN_BREED_LENGTHS, breedLengths);
+            pets.putIntArray(PetContract.KEY_COLUMN_GENDERS, genders);
+            pets.putIntArray(PetContract.KEY_COLUMN_WEIGHTS, weights);
+            return pets;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Insert the pets of a columnar Bundle, all or none, and return their new ids in a Bundle
+     * under {@link PetContract#KEY_COLUMN_IDS}. The pets are checked with the same rules as
+     * {@link PetProvider#validatePet} before anything is written.
+     */
+    Bundle write(Bundle pets) {
+        String names = pets.getString(PetContract.KEY_COLUMN_NAMES);
+        int[] nameLengths = pets.getIntArray(PetContract.KEY_COLUMN_NAME_LENGTHS);
+        String breeds = pets.getString(PetContract.KEY_COLUMN_BREEDS);
+        int[] breedLengths = pets.getIntArray(PetContract.KEY_COLUMN_BREED_LENGTHS);
+        int[] genders = pets.getIntArray(PetContract.KEY_COLUMN_GENDERS);
+        int[] weights = pets.getIntArray(PetContract.KEY_COLUMN_WEIGHTS);
+        if (names == null || nameLengths == null || genders == null) {
+            throw new IllegalArgumentException("Pets require names and genders");
+        }
+        int count = nameLengths.length;
+        if (genders.length != count
+                || (weights != null && weights.length != count)
+                || (breedLengths != null && breedLengths.length != count)
+                || (breedLengths != null && breeds == null)) {
+            throw new IllegalArgumentException("Columns of different lengths");
+        }
+
+        // Check every column before writing anything, so a bad pet can't leave half the pets
+        checkPacked(names, nameLengths, false);
+        if (breedLengths != null) {
+            checkPacked(breeds, breedLengths, true);
+        }
+        for (int gender : genders) {
+            if (!PetEntry.isValidGender(gender)) {
+                throw new IllegalArgumentException("Pet requires a gender");
+            }
+        }
+        if (weights != null) {
+            for (int weight : weights) {
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Pet requires a valid weight");
+                }
+            }
+        }
+
+        long[] ids = new long[count];
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        // Non-exclusive, so readers keep reading the last committed data while the pets go in
+        db.beginTransactionNonExclusive();
+        try {
+            int nameStart = 0;
+            int breedStart = 0;
+            for (int i = 0; i < count; i++) {
+                String name = names.substring(nameStart, nameStart + nameLengths[i]);
+                nameStart += nameLengths[i];
+                String breed = null;
+                if (breedLengths != null && breedLengths[i] >= 0) {
+                    breed = breeds.substring(breedStart, breedStart + breedLengths[i]);
+                    breedStart += breedLengths[i];
+                }
+                ids[i] = mStatementCache.insert(name, breed, genders[i],
+                        weights == null ? 0 : weights[i]);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Bundle result = new Bundle();
+        result.putLongArray(PetContract.KEY_COLUMN_IDS, ids);
+        return result;
+    }
+
+    /**
+     * Copy the string in the given column of the current row to the end of the packed
+     * strings and return its length, or -1 if it is null.
+     */
+    private static int append(Cursor cursor, int columnIndex, CharArrayBuffer buffer,
+                              StringBuilder packed) {
+        if (cursor.isNull(columnIndex)) {
+            return -1;
+        }
+        cursor.copyStringToBuffer(columnIndex, buffer);
+        packed.append(buffer.data, 0, buffer.sizeCopied);
+        return buffer.sizeCopied;
+    }
+
+    /**
+     * Check that the lengths describe the packed strings exactly. Nulls, a length of -1, are
+     * only allowed if nullable.
+     */
+    private static void checkPacked(String packed, int[] lengths, boolean nullable) {
+        long total = 0;
+        for (int length : lengths) {
+            if (length < 0 && !(nullable && length == -1)) {
+                throw new IllegalArgumentException(nullable
+                        ? "Invalid packed string length " + length
+                        : "Pet requires a name");
+            }
+            total += Math.max(length, 0);
+        }
+        if (total != packed.length()) {
+            throw new IllegalArgumentException("Packed strings of length " + packed.length()
+                    + " don't match their lengths " + Arrays.toString(lengths));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.pets.data;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Removes soft deleted pets for good, see {@link PetEntry#COLUMN_PET_DELETED_AT}.
+ * <p>
+ * The work happens on a background thread in runs of at most {@link #TIME_BOX_MILLIS}, each
+ * made of batches of {@link #BATCH_SIZE} pets that commit on their own. Between runs the
+ * write lock is left free for {@link #PAUSE_MILLIS}, so the app's own writes never queue
+ * behind a long delete, and readers are never blocked since the database uses write-ahead
+ * logging.
+ * <p>
+ * The pages the removed pets took are kept free in the file rather than given back to the file
+ * system, and are reused by the pets inserted later, so the file doesn't keep growing. Giving
+ * them back would take VACUUM, since the framework creates its metadata table before the app's
+ * and so rules out incremental vacuum, and VACUUM rewrites the whole database while holding
+ * the write lock, which no time box can bound.
+ */
+class PetCompactor {
+
+    private static final String LOG_TAG = PetCompactor.class.getSimpleName();
+
+    /** Time to wait after a delete before compacting, so a burst of deletes is compacted once */
+    static final long DELAY_MILLIS = 2000;
+
+    /** Longest time a run holds on to the database */
+    static final long TIME_BOX_MILLIS = 20;
+
+    /** Time left between two runs */
+    static final long PAUSE_MILLIS = 500;
+
+    /** Number of deleted pets removed by one statement */
+    static final int BATCH_SIZE = 200;
+
+    private static final String SQL_REMOVE_BATCH = "DELETE FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " IN (SELECT " + PetEntry._ID
+            + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_DELETED_AT + " IS NOT NULL"
+            + " LIMIT " + BATCH_SIZE + ")";
+
+    private final PetDbHelper mDbHelper;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    /** Whether a run is scheduled. Guarded by this */
+    private boolean mScheduled;
+
+    private final Runnable mCompact = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PetCompactor.this) {
+                mScheduled = false;
+            }
+            try {
+                if (!compact()) {
+                    schedule(PAUSE_MILLIS);
+                }
+            } catch (SQLException e) {
+                // Nothing is lost, the deleted pets stay hidden until the next delete retries
+                Log.e(LOG_TAG, "Compaction failed", e);
+            }
+        }
+    };
+
+    PetCompactor(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Compact soon, after pets were deleted. Does nothing if a run is already scheduled.
+     */
+    void schedule() {
+        schedule(DELAY_MILLIS);
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mCompact, delayMillis);
+        }
+    }
+
+    /**
+     * Stop compacting. Whatever is left is compacted the next time the provider starts.
+     */
+    synchronized void shutdown() {
+        mHandler.removeCallbacks(mCompact);
+        mScheduled = false;
+        mThread.quit();
+    }
+
+    /**
+     * Run for at most {@link #TIME_BOX_MILLIS}. Return true if there is nothing left to do.
+     */
+    boolean compact() {
+        long deadline = SystemClock.uptimeMillis() + TIME_BOX_MILLIS;
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        SQLiteStatement removeBatch = db.compileStatement(SQL_REMOVE_BATCH);
+        try {
+            while (removeBatch.executeUpdateDelete() == BATCH_SIZE) {
+                if (SystemClock.uptimeMillis() >= deadline) {
+                    return false;
+                }
+            }
+        } finally {
+            removeBatch.close();
+        }
+        return true;
+    }
+}
@@ -47,6 +47,275 @@ public final class PetContract {
      */
     public static final String PATH_PETS = "pets";
 
+    /**
+     * Path appended to the pets path for full-text search over pet names and breeds,
+     * for example content://com.example.android.pets/pets/search?q=terr
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Path appended to the pets path for the statistics of the pets of each gender,
+     * for example content://com.example.android.pets/pets/stats
+     */
+    public static final String PATH_STATS = "stats";
+
+    /**
+     * Path appended to the pets path for the progress of the imports of pets,
+     * for example content://com.example.android.pets/pets/imports
+     */
+    public static final String PATH_IMPORTS = "imports";
+
+    /**
+     * Path appended to the pets path for the alphabetical sections of the pets ordered by name,
+     * for example content://com.example.android.pets/pets/sections
+     */
+    public static final String PATH_SECTIONS = "sections";
+
+
+    /**
+     * Name of the provider method, called with {@link ContentResolver#call}, that returns the
+     * counters of the cache of single pet rows. The returned Bundle holds the values under
+     * {@link #KEY_CACHE_HITS}, {@link #KEY_CACHE_MISSES}, {@link #KEY_CACHE_EVICTIONS},
+     * {@link #KEY_CACHE_SIZE_BYTES} and {@link #KEY_CACHE_MAX_SIZE_BYTES}.
+     */
+    public static final String METHOD_GET_CACHE_STATS = "get_cache_stats";
+
+    /** Number of single pet queries answered from the cache. Type: int */
+    public static final String KEY_CACHE_HITS = "cache_hits";
+
+    /** Number of single pet queries that had to read the database. Type: int */
+    public static final String KEY_CACHE_MISSES = "cache_misses";
+
+    /** Number of rows evicted to keep the cache within its size. Type: int */
+    public static final String KEY_CACHE_EVICTIONS = "cache_evictions";
+
+    /** Estimated size in bytes of the rows in the cache. Type: int */
+    public static final String KEY_CACHE_SIZE_BYTES = "cache_size_bytes";
+
+    /** Estimated size in bytes the rows in the cache may take up. Type: int */
+    public static final String KEY_CACHE_MAX_SIZE_BYTES = "cache_max_size_bytes";
+
+    /**
+     * Name of the provider method, called with {@link ContentResolver#call}, that returns the
+     * counters of every operation the provider served since the last reset. The returned Bundle
+     * holds {@link #KEY_METRICS_ELAPSED_MILLIS} and {@link #KEY_METRICS_BUCKET_BOUNDS_MICROS},
+     * and one Bundle per operation and URI that was used, under a key such as "query/pets" or
+     * "update/pet_id". The operations are query, insert, bulk_insert, update, delete and
+     * apply_batch, and the import, read_columnar and write_columnar methods, and the URIs are
+     * pets, pet_id, search, stats, imports, sections and unknown. A batch and the columnar
+     * methods are recorded under pets and an import under imports, and the rows of an import
+     * are all the pets it inserted, in this call and the runs it resumed. Each of those
+     * Bundles holds {@link #KEY_METRIC_COUNT}, {@link #KEY_METRIC_ERRORS},
+     * {@link #KEY_METRIC_ROWS}, {@link #KEY_METRIC_TOTAL_MICROS},
+     * {@link #KEY_METRIC_MAX_MICROS} and {@link #KEY_METRIC_HISTOGRAM}.
+     */
+    public static final String METHOD_GET_METRICS = "get_metrics";
+
+    /**
+     * Name of the provider method that sets every counter returned by
+     * {@link #METHOD_GET_METRICS} back to zero. Returns null.
+     */
+    public static final String METHOD_RESET_METRICS = "reset_metrics";
+
+    /** Milliseconds since the counters were last reset. Type: long */
+    public static final String KEY_METRICS_ELAPSED_MILLIS = "metrics_elapsed_millis";
+
+    /**
+     * Upper bounds in microseconds of the latency histogram buckets, in increasing order. The
+     * histogram has one more bucket than there are bounds, for the slower operations.
+     * Type: long[]
+     */
+    public static final String KEY_METRICS_BUCKET_BOUNDS_MICROS = "metrics_bucket_bounds_micros";
+
+    /** Number of operations. Type: long */
+    public static final String KEY_METRIC_COUNT = "count";
+
+    /** Number of operations that failed with an exception. Type: long */
+    public static final String KEY_METRIC_ERRORS = "errors";
+
+    /** Number of rows returned by the queries or affected by the writes. Type: long */
+    public static final String KEY_METRIC_ROWS = "rows";
+
+    /** Total time spent in the operations, in microseconds. Type: long */
+    public static final String KEY_METRIC_TOTAL_MICROS = "total_micros";
+
+    /** Time taken by the slowest operation, in microseconds. Type: long */
+    public static final String KEY_METRIC_MAX_MICROS = "max_micros";
+
+    /** Number of operations in each latency bucket. Type: long[] */
+    public static final String KEY_METRIC_HISTOGRAM = "histogram";
+
+    /**
+     * Name of the provider method that returns the most recent operations that took at least
+     * the slow query threshold. The returned Bundle holds {@link #KEY_SLOW_THRESHOLD_MILLIS} and
+     * {@link #KEY_SLOW_QUERIES}.
+     */
+    public static final String METHOD_GET_SLOW_QUERIES = "get_slow_queries";
+
+    /**
+     * Name of the provider method that sets the slow query threshold. The arg is the threshold
+     * in milliseconds. Returns null.
+     */
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+
+    /** Duration from which an operation is recorded as slow, in milliseconds. Type: long */
+    public static final String KEY_SLOW_THRESHOLD_MILLIS = "slow_threshold_millis";
+
+    /**
+     * The recorded slow operations, oldest first. Each one holds {@link #KEY_SLOW_TIME_MILLIS},
+     * {@link #KEY_SLOW_OPERATION}, {@link #KEY_SLOW_SQL}, {@link #KEY_SLOW_ARGS_SHAPE},
+     * {@link #KEY_SLOW_ROWS}, {@link #KEY_SLOW_DURATION_MICROS} and
+     * {@link #KEY_SLOW_QUERY_PLAN}. Type: ArrayList of Bundle
+     */
+    public static final String KEY_SLOW_QUERIES = "slow_queries";
+
+    /** Wall clock time the slow operation ended, in milliseconds. Type: long */
+    public static final String KEY_SLOW_TIME_MILLIS = "time_millis";
+
+    /**
+     * Operation and URI, named as in {@link #METHOD_GET_METRICS}, for example "query/pets".
+     * Type: String
+     */
+    public static final String KEY_SLOW_OPERATION = "operation";
+
+    /** SQL the operation ran, or null if it ran none. Type: String */
+    public static final String KEY_SLOW_SQL = "sql";
+
+    /**
+     * Types of the selection arguments without their values, for example
+     * "[integer, text(5)]". Type: String
+     */
+    public static final String KEY_SLOW_ARGS_SHAPE = "args_shape";
+
+    /** Number of rows returned or affected. Type: int */
+    public static final String KEY_SLOW_ROWS = "rows";
+
+    /** Time the operation took, in microseconds. Type: long */
+    public static final String KEY_SLOW_DURATION_MICROS = "duration_micros";
+
+    /**
+     * Output of EXPLAIN QUERY PLAN for the SQL, one step per line, or null if there is no SQL
+     * or it could not be explained. Type: String
+     */
+    public static final String KEY_SLOW_QUERY_PLAN = "query_plan";
+
+    /**
+     * Name of the provider method that returns the cold start trace of the process: the time
+     * each step of the startup was first reached, in milliseconds since the process started.
+     * The returned Bundle holds the steps reached so far, out of
+     * {@link #KEY_STARTUP_PROVIDER_CREATED}, {@link #KEY_STARTUP_DATABASE_OPEN},
+     * {@link #KEY_STARTUP_LIST_PRIMED}, {@link #KEY_STARTUP_FIRST_PAGE_LOADED} and
+     * {@link #KEY_STARTUP_FIRST_ROW_BOUND}. Type of each: long
+     */
+    public static final String METHOD_GET_STARTUP_TRACE = "get_startup_trace";
+
+    /** The provider was created, which is the first code of the app to run */
+    public static final String KEY_STARTUP_PROVIDER_CREATED = "provider_created";
+
+    /** The database was opened, and created or migrated if needed, in the background */
+    public static final String KEY_STARTUP_DATABASE_OPEN = "database_open";
+
+    /** The first page of the list of pets was read once in the background */
+    public static final String KEY_STARTUP_LIST_PRIMED = "list_primed";
+
+    /** The catalog received the first page of pets from its loader */
+    public static final String KEY_STARTUP_FIRST_PAGE_LOADED = "first_page_loaded";
+
+    /** The catalog bound the first pet to a row of its list */
+    public static final String KEY_STARTUP_FIRST_ROW_BOUND = "first_row_bound";
+
+    /**
+     * MIME type of the CSV export of the pets, opened with
+     * {@link ContentResolver#openTypedAssetFileDescriptor} on {@link PetEntry#CONTENT_URI}.
+     * The first record holds the column names.
+     */
+    public static final String MIME_TYPE_CSV = "text/csv";
+
+    /**
+     * MIME type of the JSON export of the pets, opened the same way as {@link #MIME_TYPE_CSV}.
+     * The export is an array holding one object per pet.
+     */
+    public static final String MIME_TYPE_JSON = "application/json";
+
+    /**
+     * Name of the provider method that imports pets from a CSV or JSON file in the format of
+     * the exports, see {@link #MIME_TYPE_CSV} and {@link #MIME_TYPE_JSON}. The arg is the URI
+     * of the file, which the app must be able to read, and the extras hold
+     * {@link #KEY_IMPORT_MIME_TYPE} and optionally {@link #KEY_IMPORT_CHUNK_SIZE} and
+     * {@link #KEY_IMPORT_RESTART}.
+     * <p>
+     * The file is read as a stream and its pets are committed in chunks, each together with
+     * the progress of the import, which can be followed on {@link ImportEntry#CONTENT_URI}.
+     * Pets that break the same rules as an insert are counted and skipped. If the import is
+     * interrupted, calling the method again with the same file resumes it after the last
+     * committed chunk. The method returns once the whole file is imported, with the progress
+     * of the import in a Bundle holding the {@link ImportEntry} columns. Call it off the main
+     * thread.
+     */
+    public static final String METHOD_IMPORT_PETS = "import_pets";
+
+    /** MIME type of the file to import, {@link #MIME_TYPE_CSV} or {@link #MIME_TYPE_JSON} */
+    public static final String KEY_IMPORT_MIME_TYPE = "import_mime_type";
+
+    /** Number of pets committed at a time by an import. Type: int */
+    public static final String KEY_IMPORT_CHUNK_SIZE = "import_chunk_size";
+
+    /**
+     * True to import the file again from the start, even if it was imported before.
+     * Type: boolean
+     */
+    public static final String KEY_IMPORT_RESTART = "import_restart";
+
+    /**
+     * Name of the provider method that reads pets as columns. The optional extras hold
+     * {@link #KEY_COLUMNAR_AFTER_ID} and {@link #KEY_COLUMNAR_LIMIT}. Returns the pets in id
+     * order, one array per column: {@link #KEY_COLUMN_IDS}, {@link #KEY_COLUMN_NAMES} with
+     * {@link #KEY_COLUMN_NAME_LENGTHS}, {@link #KEY_COLUMN_BREEDS} with
+     * {@link #KEY_COLUMN_BREED_LENGTHS}, {@link #KEY_COLUMN_GENDERS} and
+     * {@link #KEY_COLUMN_WEIGHTS}. Fewer pets than the limit means there are no more; otherwise
+     * read the next ones after the last id returned.
+     * <p>
+     * Names and breeds are packed: all of them are concatenated into one String, and the
+     * length of each is in the lengths array, -1 for a null breed. The pet at index i starts
+     * where the pets before it end.
+     */
+    public static final String METHOD_READ_PETS_COLUMNAR = "read_pets_columnar";
+
+    /**
+     * Name of the provider method that inserts pets given as columns, in the layout returned
+     * by {@link #METHOD_READ_PETS_COLUMNAR} without the ids. The breeds and weights may be
+     * left out. The pets are checked with the same rules as an insert, and are all inserted
+     * in one transaction or, if any is invalid, none is. Returns the new ids under
+     * {@link #KEY_COLUMN_IDS}, in the order of the pets.
+     */
+    public static final String METHOD_WRITE_PETS_COLUMNAR = "write_pets_columnar";
+
+    /** Id after which a columnar read starts, 0 to start at the first pet. Type: long */
+    public static final String KEY_COLUMNAR_AFTER_ID = "columnar_after_id";
+
+    /** Most pets returned by a columnar read, at most 2000. Type: int */
+    public static final String KEY_COLUMNAR_LIMIT = "columnar_limit";
+
+    /** Ids of the pets. Type: long[] */
+    public static final String KEY_COLUMN_IDS = "column_ids";
+
+    /** Names of the pets, packed. Type: String */
+    public static final String KEY_COLUMN_NAMES = "column_names";
+
+    /** Length of the name of each pet in {@link #KEY_COLUMN_NAMES}. Type: int[] */
+    public static final String KEY_COLUMN_NAME_LENGTHS = "column_name_lengths";
+
+    /** Breeds of the pets, packed. Type: String */
+    public static final String KEY_COLUMN_BREEDS = "column_breeds";
+
+    /** Length of the breed of each pet in {@link #KEY_COLUMN_BREEDS}, or -1. Type: int[] */
+    public static final String KEY_COLUMN_BREED_LENGTHS = "column_breed_lengths";
+
+    /** Genders of the pets. Type: int[] */
+    public static final String KEY_COLUMN_GENDERS = "column_genders";
+
+    /** Weights of the pets. Type: int[] */
+    public static final String KEY_COLUMN_WEIGHTS = "column_weights";
 
     // To prevent someone from accidentally instantiating the contract class,
     // give it an empty constructor.
@@ -64,11 +333,73 @@ public final class PetContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * The content URI to search pets by name and breed, see {@link #buildSearchUri}
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
         /**
          * Name of database table for pets
          */
         public final static String TABLE_NAME = "pets";
 
+        /**
+         * Name of the full-text table indexing the name and breed of every pet
+         */
+        public final static String FTS_TABLE_NAME = "pets_fts";
+
+        /**
+         * Name of the index on name and breed, which served filtering and sorting on name.
+         * It was dropped once {@link #INDEX_DELETED_AT_NAME} served those for the pets that
+         * aren't deleted, the only ones queried.
+         */
+        public final static String INDEX_NAME_BREED = "pets_name_breed_index";
+
+        /**
+         * Name of the index on breed
+         */
+        public final static String INDEX_BREED = "pets_breed_index";
+
+        /**
+         * Name of the index on breed ignoring case, which replaced the index on breed. It
+         * serves the filter on breed, see {@link PetQueryBuilder#breed}.
+         */
+        public final static String INDEX_BREED_NOCASE = "pets_breed_nocase_index";
+
+        /**
+         * Name of the index on gender
+         */
+        public final static String INDEX_GENDER = "pets_gender_index";
+
+        /**
+         * Name of the index on gender and weight, which replaced the index on gender. It lets
+         * the weight statistics of a gender be kept up to date without scanning the pets.
+         */
+        public final static String INDEX_GENDER_WEIGHT = "pets_gender_weight_index";
+
+        /**
+         * Name of the index on the deletion time, which lets compaction find the deleted pets
+         * without scanning the table. The live pets are in it in id order, which the pages
+         * ordered by id read.
+         */
+        public final static String INDEX_DELETED_AT = "pets_deleted_at_index";
+
+        /**
+         * Name of the index on the deletion time and name. The pets that aren't deleted are in
+         * it in name order, so pets are read by name and counted by first letter without
+         * sorting, see {@link SectionEntry}. It doesn't replace {@link #INDEX_DELETED_AT}:
+         * without that one, SQLite reads the pages ordered by id through this index and sorts
+         * them.
+         */
+        public final static String INDEX_DELETED_AT_NAME = "pets_deleted_at_name_index";
+
+        /**
+         * Name of the index on the deletion time and weight. The pets that aren't deleted are
+         * in it in weight order, so pages ordered by weight are read without sorting when
+         * they aren't filtered by gender, see {@link #INDEX_GENDER_WEIGHT} for those that are.
+         */
+        public final static String INDEX_DELETED_AT_WEIGHT = "pets_deleted_at_weight_index";
+
         /**
          * Unique ID number for the pet (only for use in the database table).
          * <p>
@@ -107,6 +438,26 @@ public final class PetContract {
          */
         public final static String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Time the pet was deleted, in milliseconds since the epoch, or null while it exists.
+         * <p>
+         * A delete only sets this, and deleted pets are left out of every query. They are
+         * removed from the table for good later, in small batches in the background. Only the
+         * provider writes this column.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_DELETED_AT = "deleted_at";
+
+        /**
+         * Version of the pet, 0 when it is inserted and one more after every update. A client
+         * can update a pet only if it is still the version the client read, see
+         * {@link #buildVersionedUri}. Only the provider writes this column.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_VERSION = "version";
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          */
@@ -120,6 +471,142 @@ public final class PetContract {
                 + PATH_PETS;
 
 
+        /**
+         * Query parameter for the {@link #CONTENT_URI} that limits the result to one page of at
+         * most this many pets. Pages are read with keyset paging from an index in the order of
+         * their key, so every page costs the same no matter how deep into the table it is.
+         */
+        public static final String QUERY_PARAM_PAGE_SIZE = "page_size";
+
+        /**
+         * Query parameter that selects the key a page is ordered by. The only possible values are
+         * {@link #_ID} (the default), {@link #COLUMN_PET_NAME} or {@link #COLUMN_PET_WEIGHT}.
+         * Pages ordered by name or weight are then ordered by id, so pets with the same name or
+         * weight still page correctly. It also orders a query that isn't paged, see
+         * {@link PetQueryBuilder#sortBy}.
+         */
+        public static final String QUERY_PARAM_PAGE_KEY = "page_key";
+
+        /**
+         * Query parameter holding the id of the last pet on the previous page. Leave it out to
+         * read the first page.
+         */
+        public static final String QUERY_PARAM_AFTER_ID = "after_id";
+
+        /**
+         * Query parameter holding the name of the last pet on the previous page. Only used, and
+         * then required, when the page is ordered by {@link #COLUMN_PET_NAME}.
+         */
+        public static final String QUERY_PARAM_AFTER_NAME = "after_name";
+
+        /**
+         * Query parameter holding the weight of the last pet on the previous page. Only used, and
+         * then required, when the page is ordered by {@link #COLUMN_PET_WEIGHT}.
+         */
+        public static final String QUERY_PARAM_AFTER_WEIGHT = "after_weight";
+
+        /**
+         * Query parameters holding the id, name and weight of the first pet on the next page,
+         * to read the page that comes before it instead of after a pet. The page still comes
+         * in list order. The name and weight are used as for the page after a pet.
+         */
+        public static final String QUERY_PARAM_BEFORE_ID = "before_id";
+        public static final String QUERY_PARAM_BEFORE_NAME = "before_name";
+        public static final String QUERY_PARAM_BEFORE_WEIGHT = "before_weight";
+
+        /**
+         * Query parameters for the {@link #CONTENT_URI} that only keep the pets of the given
+         * gender, with a weight in the given range, of the given breed (ignoring case), or with
+         * a name starting with the given text (in the same case). Build them with a
+         * {@link PetQueryBuilder}.
+         */
+        public static final String QUERY_PARAM_GENDER = "gender";
+        public static final String QUERY_PARAM_MIN_WEIGHT = "min_weight";
+        public static final String QUERY_PARAM_MAX_WEIGHT = "max_weight";
+        public static final String QUERY_PARAM_BREED = "breed";
+        public static final String QUERY_PARAM_NAME_PREFIX = "name_prefix";
+
+        /**
+         * Query parameter for the {@link #CONTENT_SEARCH_URI} holding the search text. Every word
+         * in it is matched as a prefix of a word in the name or breed of a pet.
+         */
+        public static final String QUERY_PARAM_SEARCH = "q";
+
+        /**
+         * Query parameter for the URI of a single pet holding the {@link #COLUMN_PET_VERSION}
+         * an update expects the pet to be at, see {@link #buildVersionedUri}.
+         */
+        public static final String QUERY_PARAM_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Build the URI to search pets by name and breed. The results are ranked with pets whose
+         * name starts with the first word of the search first.
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_SEARCH, query)
+                    .build();
+        }
+
+        /**
+         * Build the URI to update the pet with the given URI only if it is still at the given
+         * version. If another write updated the pet since, the update changes nothing and
+         * throws a {@link PetVersionConflictException}. If the pet is gone, it updates 0 rows.
+         */
+        public static Uri buildVersionedUri(Uri petUri, long version) {
+            return petUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_EXPECTED_VERSION, String.valueOf(version))
+                    .build();
+        }
+
+        /**
+         * Columns the list of pets reads every page with. The provider reads the first page
+         * with them in the background when it starts, so the list's first query finds the
+         * pages it reads in memory.
+         */
+        public static final String[] LIST_PROJECTION = {
+                _ID,
+                COLUMN_PET_NAME,
+                COLUMN_PET_BREED,
+                COLUMN_PET_GENDER,
+                COLUMN_PET_WEIGHT,
+                COLUMN_PET_VERSION };
+
+        /**
+         * Build the URI for the first page of pets ordered by id.
+         */
+        public static Uri buildPageUri(int pageSize) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_PAGE_SIZE, String.valueOf(pageSize))
+                    .build();
+        }
+
+        /**
+         * Build the URI for the page of pets ordered by id that comes after the pet with the
+         * given id.
+         */
+        public static Uri buildPageUri(int pageSize, long afterId) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_PAGE_SIZE, String.valueOf(pageSize))
+                    .appendQueryParameter(QUERY_PARAM_AFTER_ID, String.valueOf(afterId))
+                    .build();
+        }
+
+        /**
+         * Build the URI for a page of pets ordered by name. Pass a null afterName to read the
+         * first page, otherwise the name and id of the last pet on the previous page.
+         */
+        public static Uri buildNamePageUri(int pageSize, String afterName, long afterId) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_PAGE_SIZE, String.valueOf(pageSize))
+                    .appendQueryParameter(QUERY_PARAM_PAGE_KEY, COLUMN_PET_NAME);
+            if (afterName != null) {
+                builder.appendQueryParameter(QUERY_PARAM_AFTER_NAME, afterName)
+                        .appendQueryParameter(QUERY_PARAM_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
         /**
          * Possible values for the gender of the pet.
          */
@@ -136,5 +623,403 @@ public final class PetContract {
         }
     }
 
-}
+    /**
+     * Builds the URI of a query of the pets from typed filters and a sort key, instead of a
+     * selection written by hand. The provider turns it into one of a fixed set of parameterized
+     * queries, which SQLite prepares once and then reuses, and reads only the pet columns. For
+     * example, the first page of the male pets of at most 10 kg, ordered by name:
+     * <pre>
+     * Uri uri = new PetQueryBuilder()
+     *         .gender(PetEntry.GENDER_MALE)
+     *         .maxWeight(10)
+     *         .sortBy(PetEntry.COLUMN_PET_NAME)
+     *         .pageSize(50)
+     *         .build();
+     * </pre>
+     * A query built this way can't also have a selection or a sort order.
+     */
+    public static final class PetQueryBuilder {
+
+        private Integer mGender;
+        private Integer mMinWeight;
+        private Integer mMaxWeight;
+        private String mBreed;
+        private String mNamePrefix;
+        private String mSortKey = PetEntry._ID;
+        private int mPageSize;
+        private boolean mHasPosition;
+        private boolean mBefore;
+        private long mPositionId;
+        private String mPositionName;
+        private int mPositionWeight;
+
+        /**
+         * Constructs a builder of a query of every pet, ordered by id.
+         */
+        public PetQueryBuilder() {
+        }
+
+        /**
+         * Constructs a builder with the filters and sort key of the given one, but no page, so
+         * the pages of the same list of pets can be built from it.
+         */
+        public PetQueryBuilder(PetQueryBuilder query) {
+            mGender = query.mGender;
+            mMinWeight = query.mMinWeight;
+            mMaxWeight = query.mMaxWeight;
+            mBreed = query.mBreed;
+            mNamePrefix = query.mNamePrefix;
+            mSortKey = query.mSortKey;
+        }
+
+        /**
+         * Only keep the pets of the given gender, one of the PetEntry GENDER constants.
+         */
+        public PetQueryBuilder gender(int gender) {
+            if (!PetEntry.isValidGender(gender)) {
+                throw new IllegalArgumentException("Invalid gender " + gender);
+            }
+            mGender = gender;
+            return this;
+        }
+
+        /**
+         * Only keep the pets that weigh at least the given weight.
+         */
+        public PetQueryBuilder minWeight(int weight) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Invalid weight " + weight);
+            }
+            mMinWeight = weight;
+            return this;
+        }
+
+        /**
+         * Only keep the pets that weigh at most the given weight.
+         */
+        public PetQueryBuilder maxWeight(int weight) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Invalid weight " + weight);
+            }
+            mMaxWeight = weight;
+            return this;
+        }
+
+        /**
+         * Only keep the pets of the given breed, ignoring case.
+         */
+        public PetQueryBuilder breed(String breed) {
+            if (breed == null) {
+                throw new IllegalArgumentException("Breed requires a value");
+            }
+            mBreed = breed;
+            return this;
+        }
+
+        /**
+         * Only keep the pets whose name starts with the given text, in the same case, so the
+         * pets are found in the index on name.
+         */
+        public PetQueryBuilder namePrefix(String prefix) {
+            if (prefix == null) {
+                throw new IllegalArgumentException("Name prefix requires a value");
+            }
+            mNamePrefix = prefix;
+            return this;
+        }
 
+        /**
+         * Order the pets by {@link PetEntry#_ID} (the default), {@link PetEntry#COLUMN_PET_NAME}
+         * or {@link PetEntry#COLUMN_PET_WEIGHT}, and then by id.
+         */
+        public PetQueryBuilder sortBy(String column) {
+            if (!PetEntry._ID.equals(column) && !PetEntry.COLUMN_PET_NAME.equals(column)
+                    && !PetEntry.COLUMN_PET_WEIGHT.equals(column)) {
+                throw new IllegalArgumentException("Cannot sort by " + column);
+            }
+            mSortKey = column;
+            return this;
+        }
+
+        /**
+         * Only read one page of at most the given number of pets, see
+         * {@link PetEntry#QUERY_PARAM_PAGE_SIZE}.
+         */
+        public PetQueryBuilder pageSize(int pageSize) {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("Invalid page size " + pageSize);
+            }
+            mPageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * Read the page that comes after the given pet, the last pet of the previous page.
+         * Only the values the sort key needs are used.
+         */
+        public PetQueryBuilder after(long id, String name, int weight) {
+            mHasPosition = true;
+            mBefore = false;
+            mPositionId = id;
+            mPositionName = name;
+            mPositionWeight = weight;
+            return this;
+        }
+
+        /**
+         * Read the page that comes before the given pet, the first pet of the next page. Only
+         * the values the sort key needs are used.
+         */
+        public PetQueryBuilder before(long id, String name, int weight) {
+            after(id, name, weight);
+            mBefore = true;
+            return this;
+        }
+
+        /**
+         * Build the URI of the alphabetical sections of the pets the filters keep, see
+         * {@link SectionEntry}. The sort key and page are not used.
+         */
+        public Uri buildSectionsUri() {
+            Uri.Builder builder = SectionEntry.CONTENT_URI.buildUpon();
+            appendFilters(builder);
+            return builder.build();
+        }
+
+        /**
+         * Build the URI of the query.
+         */
+        public Uri build() {
+            if (mHasPosition && mPageSize == 0) {
+                throw new IllegalStateException("Only a page can start at a pet");
+            }
+            if (mHasPosition && mPositionName == null
+                    && PetEntry.COLUMN_PET_NAME.equals(mSortKey)) {
+                throw new IllegalStateException("Name page requires a name position");
+            }
+            Uri.Builder builder = PetEntry.CONTENT_URI.buildUpon();
+            appendFilters(builder);
+            if (!PetEntry._ID.equals(mSortKey)) {
+                builder.appendQueryParameter(PetEntry.QUERY_PARAM_PAGE_KEY, mSortKey);
+            }
+            if (mPageSize > 0) {
+                builder.appendQueryParameter(PetEntry.QUERY_PARAM_PAGE_SIZE,
+                        String.valueOf(mPageSize));
+            }
+            if (mHasPosition) {
+                if (PetEntry.COLUMN_PET_NAME.equals(mSortKey)) {
+                    builder.appendQueryParameter(mBefore ? PetEntry.QUERY_PARAM_BEFORE_NAME
+                            : PetEntry.QUERY_PARAM_AFTER_NAME, mPositionName);
+                } else if (PetEntry.COLUMN_PET_WEIGHT.equals(mSortKey)) {
+                    builder.appendQueryParameter(mBefore ? PetEntry.QUERY_PARAM_BEFORE_WEIGHT
+                            : PetEntry.QUERY_PARAM_AFTER_WEIGHT, String.valueOf(mPositionWeight));
+                }
+                builder.appendQueryParameter(mBefore ? PetEntry.QUERY_PARAM_BEFORE_ID
+                        : PetEntry.QUERY_PARAM_AFTER_ID, String.valueOf(mPositionId));
+            }
+            return builder.build();
+        }
+
+        private void appendFilters(Uri.Builder builder) {
+            if (mGender != null) {
+                builder.appendQueryParameter(PetEntry.QUERY_PARAM_GENDER,
+                        String.valueOf(mGender));
+            }
+            if (mMinWeight != null) {
+                builder.appendQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT,
+                        String.valueOf(mMinWeight));
+            }
+            if (mMaxWeight != null) {
+                builder.appendQueryParameter(PetEntry.QUERY_PARAM_MAX_WEIGHT,
+                        String.valueOf(mMaxWeight));
+            }
+            if (mBreed != null) {
+                builder.appendQueryParameter(PetEntry.QUERY_PARAM_BREED, mBreed);
+            }
+            if (mNamePrefix != null) {
+                builder.appendQueryParameter(PetEntry.QUERY_PARAM_NAME_PREFIX, mNamePrefix);
+            }
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the alphabetical sections of the pets
+     * ordered by name, which let a list of them jump straight to a letter. There is one entry
+     * per first character of a name, in the order of the names, holding the position in the
+     * list of the first pet in the section and the number of pets in it. Build the URI with
+     * {@link PetQueryBuilder#buildSectionsUri} for the sections of filtered pets.
+     * <p>
+     * The sections are computed when they are read: the provider seeks from one section to the
+     * next in the index on name, see {@link PetEntry#INDEX_DELETED_AT_NAME}, and counts each
+     * section as a range of it. That is one pass over the index, with no sorting, rather than
+     * the full sort a GROUP BY on the first letter takes.
+     */
+    public static final class SectionEntry {
+
+        /**
+         * The content URI to read the sections of all pets
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_SECTIONS);
+
+        /**
+         * First character of the names of the pets in the section.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_SECTION = "section";
+
+        /**
+         * Position of the first pet of the section in the list of the pets ordered by name.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_POSITION = "position";
+
+        /**
+         * Number of pets in the section.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_COUNT = "pet_count";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the sections.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                + PATH_PETS + "/" + PATH_SECTIONS;
+    }
+
+    /**
+     * Inner class that defines constant values for the pet statistics table. Each entry in the
+     * table holds the statistics of the pets of one gender, and is kept up to date by the
+     * database as pets are inserted, updated and deleted, so reading it costs the same no matter
+     * how many pets there are.
+     */
+    public static final class StatsEntry {
+
+        /**
+         * The content URI to read the statistics of each gender
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * Name of database table for the statistics
+         */
+        public final static String TABLE_NAME = "pet_stats";
+
+        /**
+         * Gender the statistics are for, one of the {@link PetEntry} gender constants.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_GENDER = "gender";
+
+        /**
+         * Number of pets of the gender.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_COUNT = "pet_count";
+
+        /**
+         * Sum of the weights of the pets of the gender.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_WEIGHT_SUM = "weight_sum";
+
+        /**
+         * Lowest weight of a pet of the gender, or null if there are none.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MIN_WEIGHT = "min_weight";
+
+        /**
+         * Highest weight of a pet of the gender, or null if there are none.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MAX_WEIGHT = "max_weight";
+
+        /**
+         * Average weight of the pets of the gender, or null if there are none. Computed when
+         * the statistics are read.
+         * <p>
+         * Type: REAL
+         */
+        public final static String COLUMN_AVERAGE_WEIGHT = "average_weight";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the statistics.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                + PATH_PETS + "/" + PATH_STATS;
+    }
+
+    /**
+     * Inner class that defines constant values for the import progress table. Each entry in the
+     * table holds the progress of the import of one file, see {@link #METHOD_IMPORT_PETS}.
+     */
+    public static final class ImportEntry {
+
+        /**
+         * The content URI to read the progress of the imports
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_IMPORTS);
+
+        /**
+         * Name of database table for the import progress
+         */
+        public final static String TABLE_NAME = "pet_imports";
+
+        /**
+         * URI of the imported file.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_SOURCE = "source";
+
+        /**
+         * MIME type of the imported file.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_MIME_TYPE = "mime_type";
+
+        /**
+         * Number of records of the file that have been committed, inserted or skipped.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_RECORDS_READ = "records_read";
+
+        /**
+         * Number of pets inserted.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ROWS_INSERTED = "rows_inserted";
+
+        /**
+         * Number of records skipped because they didn't describe a valid pet.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ROWS_REJECTED = "rows_rejected";
+
+        /**
+         * 1 once the whole file has been imported, otherwise 0.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DONE = "done";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the import progress.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                + PATH_PETS + "/" + PATH_IMPORTS;
+    }
+
+}
@@ -16,10 +16,14 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.pets.data.PetContract.ImportEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
 
 /**
  * Database helper for Pets app. Manages database creation and version management.
@@ -32,24 +36,398 @@ public class PetDbHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "shelter.db";
 
     /**
-     * Database version. If you change the database schema, you must increment the database version.
+     * A single step in the schema history. The migration at index n of {@link #MIGRATIONS}
+     * upgrades a database from version n + 1 to version n + 2.
      */
-    private static final int DATABASE_VERSION = 1;
+    interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
 
     /**
-     * Constructs a new instance of {@link PetDbHelper}.
+     * Every schema change since version 1, in order. To change the schema, append a new
+     * migration here; the database version follows from the length of this array.
+     */
+    private static final Migration[] MIGRATIONS = {
+            // Version 2: indexes for filtering and sorting on name, breed and gender.
+            // The (name, breed) index also serves lookups on name alone, and since every index
+            // carries the row id it covers the catalog's (_id, name, breed) projection.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX " + PetEntry.INDEX_NAME_BREED + " ON "
+                            + PetEntry.TABLE_NAME + " ("
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ");");
+                    db.execSQL("CREATE INDEX " + PetEntry.INDEX_BREED + " ON "
+                            + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_BREED + ");");
+                    db.execSQL("CREATE INDEX " + PetEntry.INDEX_GENDER + " ON "
+                            + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_GENDER + ");");
+                }
+            },
+            // Version 3: full-text index over name and breed, kept in sync by triggers.
+            // The docid of every full-text row is the _id of its pet.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE " + PetEntry.FTS_TABLE_NAME + " USING fts4("
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ");");
+
+                    db.execSQL("CREATE TRIGGER pets_fts_insert AFTER INSERT ON "
+                            + PetEntry.TABLE_NAME + " BEGIN "
+                            + "INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") "
+                            + "VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME
+                            + ", new." + PetEntry.COLUMN_PET_BREED + "); END;");
+                    db.execSQL("CREATE TRIGGER pets_fts_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED
+                            + " ON " + PetEntry.TABLE_NAME + " BEGIN "
+                            + "UPDATE " + PetEntry.FTS_TABLE_NAME + " SET "
+                            + PetEntry.COLUMN_PET_NAME + " = new." + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + " = new." + PetEntry.COLUMN_PET_BREED
+                            + " WHERE docid = old." + PetEntry._ID + "; END;");
+                    db.execSQL("CREATE TRIGGER pets_fts_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " BEGIN "
+                            + "DELETE FROM " + PetEntry.FTS_TABLE_NAME
+                            + " WHERE docid = old." + PetEntry._ID + "; END;");
+
+                    // Index the pets that are already in the table
+                    db.execSQL("INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") "
+                            + "SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME + ";");
+                }
+            },
+            // Version 4: summary table with the count and weight statistics of each gender,
+            // kept up to date by triggers. The gender index is replaced by a (gender, weight)
+            // index, so the minimum and maximum weight of a gender can be found again in
+            // O(log n) when the pet holding one of them is removed.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP INDEX " + PetEntry.INDEX_GENDER + ";");
+                    db.execSQL("CREATE INDEX " + PetEntry.INDEX_GENDER_WEIGHT + " ON "
+                            + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_GENDER + ", "
+                            + PetEntry.COLUMN_PET_WEIGHT + ");");
+
+                    db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + " ("
+                            + StatsEntry.COLUMN_GENDER + " INTEGER PRIMARY KEY, "
+                            + StatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                            + StatsEntry.COLUMN_WEIGHT_SUM + " INTEGER NOT NULL DEFAULT 0, "
+                            + StatsEntry.COLUMN_MIN_WEIGHT + " INTEGER, "
+                            + StatsEntry.COLUMN_MAX_WEIGHT + " INTEGER);");
+
+                    // One row for every gender a pet can have
+                    int[] genders = {
+                            PetEntry.GENDER_UNKNOWN, PetEntry.GENDER_MALE, PetEntry.GENDER_FEMALE};
+                    for (int gender : genders) {
+                        db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + " ("
+                                + StatsEntry.COLUMN_GENDER + ") VALUES (" + gender + ");");
+                    }
+
+                    db.execSQL("CREATE TRIGGER pet_stats_insert AFTER INSERT ON "
+                            + PetEntry.TABLE_NAME + " BEGIN "
+                            + addToStats("new") + " END;");
+                    db.execSQL("CREATE TRIGGER pet_stats_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " BEGIN "
+                            + removeFromStats("old", "") + " END;");
+                    // An update moves the pet out of the statistics of its old gender and
+                    // into those of its new one, which may be the same
+                    db.execSQL("CREATE TRIGGER pet_stats_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT
+                            + " ON " + PetEntry.TABLE_NAME + " BEGIN "
+                            + removeFromStats("old", "") + " "
+                            + addToStats("new") + " END;");
+
+                    // Fill in the statistics of the pets that are already in the table
+                    db.execSQL("UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                            + StatsEntry.COLUMN_PET_COUNT + " = (SELECT COUNT(*)"
+                            + petsOfGender() + "), "
+                            + StatsEntry.COLUMN_WEIGHT_SUM + " = (SELECT IFNULL(SUM("
+                            + PetEntry.COLUMN_PET_WEIGHT + "), 0)" + petsOfGender() + "), "
+                            + StatsEntry.COLUMN_MIN_WEIGHT + " = (SELECT MIN("
+                            + PetEntry.COLUMN_PET_WEIGHT + ")" + petsOfGender() + "), "
+                            + StatsEntry.COLUMN_MAX_WEIGHT + " = (SELECT MAX("
+                            + PetEntry.COLUMN_PET_WEIGHT + ")" + petsOfGender() + ");");
+                }
+
+                /**
+                 * FROM clause selecting the pets of the gender of the current statistics row.
+                 */
+                private String petsOfGender() {
+                    return " FROM " + PetEntry.TABLE_NAME + " WHERE "
+                            + PetEntry.COLUMN_PET_GENDER + " = "
+                            + StatsEntry.TABLE_NAME + "." + StatsEntry.COLUMN_GENDER;
+                }
+            },
+            // Version 5: progress of the imports of pets, committed together with each chunk
+            // of imported pets so an interrupted import can resume where it stopped.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + ImportEntry.TABLE_NAME + " ("
+                            + ImportEntry.COLUMN_SOURCE + " TEXT PRIMARY KEY, "
+                            + ImportEntry.COLUMN_MIME_TYPE + " TEXT NOT NULL, "
+                            + ImportEntry.COLUMN_RECORDS_READ + " INTEGER NOT NULL DEFAULT 0, "
+                            + ImportEntry.COLUMN_ROWS_INSERTED + " INTEGER NOT NULL DEFAULT 0, "
+                            + ImportEntry.COLUMN_ROWS_REJECTED + " INTEGER NOT NULL DEFAULT 0, "
+                            + ImportEntry.COLUMN_DONE + " INTEGER NOT NULL DEFAULT 0);");
+                }
+            },
+            // Version 6: soft delete. A delete only sets the deletion time, which is quick and
+            // leaves the pages where they are, and the deleted pets are removed for good later
+            // in small batches by PetCompactor. A soft deleted pet leaves the statistics right
+            // away, so the statistics triggers now skip pets that are already deleted, and the
+            // minimum and maximum weights are looked up again among the pets that aren't. The
+            // full-text rows stay until the pet is removed, searches skip them.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    String live = " AND " + PetEntry.COLUMN_PET_DELETED_AT + " IS NULL";
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_DELETED_AT + " INTEGER;");
+                    db.execSQL("CREATE INDEX " + PetEntry.INDEX_DELETED_AT + " ON "
+                            + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_DELETED_AT + ");");
+
+                    db.execSQL("DROP TRIGGER pet_stats_delete;");
+                    db.execSQL("CREATE TRIGGER pet_stats_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " WHEN old."
+                            + PetEntry.COLUMN_PET_DELETED_AT + " IS NULL BEGIN "
+                            + removeFromStats("old", live) + " END;");
+                    db.execSQL("CREATE TRIGGER pet_stats_soft_delete AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_DELETED_AT + " ON " + PetEntry.TABLE_NAME
+                            + " WHEN old." + PetEntry.COLUMN_PET_DELETED_AT + " IS NULL AND new."
+                            + PetEntry.COLUMN_PET_DELETED_AT + " IS NOT NULL BEGIN "
+                            + removeFromStats("old", live) + " END;");
+                    db.execSQL("DROP TRIGGER pet_stats_update;");
+                    db.execSQL("CREATE TRIGGER pet_stats_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT
+                            + " ON " + PetEntry.TABLE_NAME + " WHEN old."
+                            + PetEntry.COLUMN_PET_DELETED_AT + " IS NULL BEGIN "
+                            + removeFromStats("old", live) + " "
+                            + addToStats("new") + " END;");
+                }
+            },
+            // Version 7: version of every pet, which each update increments, so an update can
+            // be made conditional on the version the client read
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+                }
+            },
+            // Version 8: index on (deleted_at, name), so the live pets can be read in name
+            // order, and their sections found, straight from the index. The deleted_at index
+            // stays, as the pages ordered by id would be sorted without it.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX " + PetEntry.INDEX_DELETED_AT_NAME + " ON "
+                            + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_DELETED_AT + ", "
+                            + PetEntry.COLUMN_PET_NAME + ");");
+                }
+            },
+            // Version 9: the index on breed ignores case, like the filter on breed, which
+            // couldn't use the old index
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP INDEX " + PetEntry.INDEX_BREED + ";");
+                    db.execSQL("CREATE INDEX " + PetEntry.INDEX_BREED_NOCASE + " ON "
+                            + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_BREED
+                            + " COLLATE NOCASE);");
+                }
+            },
+            // Version 10: index on (deleted_at, weight), so the live pets are read in weight
+            // order from the index, like they are in name order, and a page by weight without
+            // a gender filter isn't sorted
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX " + PetEntry.INDEX_DELETED_AT_WEIGHT + " ON "
+                            + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_DELETED_AT + ", "
+                            + PetEntry.COLUMN_PET_WEIGHT + ");");
+                }
+            },
+            // Version 11: the index on (name, breed) is dropped. Every query of the pets
+            // leaves the deleted ones out, so since version 8 those by name read the index on
+            // (deleted_at, name), and this one only cost every write an update
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP INDEX " + PetEntry.INDEX_NAME_BREED + ";");
+                }
+            }
+    };
+
+    /**
+     * Trigger statement adding the given row to the statistics of its gender.
+     */
+    private static String addToStats(String row) {
+        String weight = row + "." + PetEntry.COLUMN_PET_WEIGHT;
+        return "UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_PET_COUNT + " = "
+                + StatsEntry.COLUMN_PET_COUNT + " + 1, "
+                + StatsEntry.COLUMN_WEIGHT_SUM + " = "
+                + StatsEntry.COLUMN_WEIGHT_SUM + " + " + weight + ", "
+                + StatsEntry.COLUMN_MIN_WEIGHT + " = CASE WHEN "
+                + StatsEntry.COLUMN_MIN_WEIGHT + " IS NULL OR " + weight + " < "
+                + StatsEntry.COLUMN_MIN_WEIGHT + " THEN " + weight + " ELSE "
+                + StatsEntry.COLUMN_MIN_WEIGHT + " END, "
+                + StatsEntry.COLUMN_MAX_WEIGHT + " = CASE WHEN "
+                + StatsEntry.COLUMN_MAX_WEIGHT + " IS NULL OR " + weight + " > "
+                + StatsEntry.COLUMN_MAX_WEIGHT + " THEN " + weight + " ELSE "
+                + StatsEntry.COLUMN_MAX_WEIGHT + " END"
+                + " WHERE " + StatsEntry.COLUMN_GENDER + " = "
+                + row + "." + PetEntry.COLUMN_PET_GENDER + ";";
+    }
+
+    /**
+     * Trigger statement removing the given row from the statistics of its gender.
+     * The minimum or maximum is only looked up again, through the (gender, weight)
+     * index, when the removed pet held it, among the pets the filter leaves in.
+     */
+    private static String removeFromStats(String row, String filter) {
+        String weight = row + "." + PetEntry.COLUMN_PET_WEIGHT;
+        String gender = row + "." + PetEntry.COLUMN_PET_GENDER;
+        String pets = " FROM " + PetEntry.TABLE_NAME + " WHERE "
+                + PetEntry.COLUMN_PET_GENDER + " = " + gender + filter;
+        return "UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_PET_COUNT + " = "
+                + StatsEntry.COLUMN_PET_COUNT + " - 1, "
+                + StatsEntry.COLUMN_WEIGHT_SUM + " = "
+                + StatsEntry.COLUMN_WEIGHT_SUM + " - " + weight + ", "
+                + StatsEntry.COLUMN_MIN_WEIGHT + " = CASE WHEN " + weight + " > "
+                + StatsEntry.COLUMN_MIN_WEIGHT + " THEN "
+                + StatsEntry.COLUMN_MIN_WEIGHT + " ELSE (SELECT MIN("
+                + PetEntry.COLUMN_PET_WEIGHT + ")" + pets + ") END, "
+                + StatsEntry.COLUMN_MAX_WEIGHT + " = CASE WHEN " + weight + " < "
+                + StatsEntry.COLUMN_MAX_WEIGHT + " THEN "
+                + StatsEntry.COLUMN_MAX_WEIGHT + " ELSE (SELECT MAX("
+                + PetEntry.COLUMN_PET_WEIGHT + ")" + pets + ") END"
+                + " WHERE " + StatsEntry.COLUMN_GENDER + " = " + gender + ";";
+    }
+
+    /**
+     * Database version. Version 1 is the original pets table, every migration adds one.
+     */
+    static final int DATABASE_VERSION = 1 + MIGRATIONS.length;
+
+    /**
+     * Number of pages written to the -wal file before a commit checkpoints them back into the
+     * database file. This is the platform's usual value, set here so a device that configures
+     * more can't make the file grow further: with 4 KB pages the -wal file holds about 400 KB
+     * of writes between checkpoints, and every read looks the pages it needs up in it.
+     */
+    static final int WAL_AUTOCHECKPOINT_PAGES = 100;
+
+    /**
+     * Size in bytes the -wal file is truncated back to after a checkpoint, so one big write
+     * can't leave a huge -wal file behind. Like {@link #WAL_AUTOCHECKPOINT_PAGES} this is the
+     * platform's usual value, just above the size of the -wal file at a checkpoint, so a file
+     * that only grew to that size is reused rather than truncated and grown again.
+     */
+    static final long WAL_JOURNAL_SIZE_LIMIT = 512 * 1024;
+
+    /**
+     * Number of prepared statements each connection keeps, by their SQL. The default of 25 is
+     * less than the shapes of the queries {@link PetQueryPlanner} makes and the provider's other
+     * statements, which would then keep preparing each other out of the cache.
+     */
+    static final int SQL_CACHE_SIZE = SQLiteDatabase.MAX_SQL_CACHE_SIZE;
+
+    /** Whether the database uses write-ahead logging */
+    private final boolean mWriteAheadLogging;
+
+    /**
+     * Constructs a new instance of {@link PetDbHelper} that uses write-ahead logging.
      *
      * @param context of the app
      */
     public PetDbHelper(Context context) {
+        this(context, true);
+    }
+
+    /**
+     * Constructs a new instance of {@link PetDbHelper}.
+     * <p>
+     * With write-ahead logging, readers get their own connections from the framework's
+     * connection pool and keep reading the last committed data while a write is in progress,
+     * instead of waiting for it to finish as they do with the default rollback journal.
+     * Without it the database has a single connection, which reads and writes in turn.
+     * <p>
+     * Write-ahead logging is the only setting of the pool an app has: the number of
+     * connections is the platform's, from its own resources, and no API of the SDK the app
+     * builds against changes it.
+     *
+     * @param context           of the app
+     * @param writeAheadLogging true to open the database in WAL mode
+     */
+    public PetDbHelper(Context context, boolean writeAheadLogging) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mWriteAheadLogging = writeAheadLogging;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(writeAheadLogging);
+        }
+    }
+
+    /**
+     * This is called when the database has been opened. Older platforms can't enable
+     * write-ahead logging before the database is opened, so it is enabled here, and the
+     * checkpoint policy is applied to the connection that does the writing. The statement
+     * cache size applies to every connection.
+     * <p>
+     * Both pragmas only apply to the connection that runs them, and a query outside a
+     * transaction may run on any connection of the pool. They are therefore run inside a
+     * transaction, which always takes the primary connection, the only one that writes and
+     * so the only one that checkpoints.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+        if (!mWriteAheadLogging || db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        db.beginTransactionNonExclusive();
+        try {
+            runPragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+            runPragma(db, "PRAGMA journal_size_limit=" + WAL_JOURNAL_SIZE_LIMIT);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
-     * This is called when the database is created for the first time.
+     * Run a pragma that returns a row. These can't go through execSQL on every platform.
+     */
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * This is called when the database is created for the first time. The version 1 table is
+     * created and then every migration is applied, so new and upgraded databases always end up
+     * with the same schema.
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createVersion1(db);
+        migrate(db, 1, DATABASE_VERSION);
+    }
+
+    /**
+     * Create the schema of version 1, the pets table as it was first released.
+     */
+    static void createVersion1(SQLiteDatabase db) {
         // Create a String that contains the SQL statement to create the pets table
         String SQL_CREATE_PETS_TABLE =  "CREATE TABLE " + PetEntry.TABLE_NAME + " ("
                 + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -63,10 +441,24 @@ public class PetDbHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. The framework already runs this
+     * inside a transaction, so a failing migration leaves the database at its old version.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Apply, in order, every migration needed to bring the database from one version to another.
+     */
+    static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        if (fromVersion < 1 || toVersion > DATABASE_VERSION || fromVersion > toVersion) {
+            throw new IllegalArgumentException(
+                    "Cannot migrate database from version " + fromVersion + " to " + toVersion);
+        }
+        for (int version = fromVersion; version < toVersion; version++) {
+            MIGRATIONS[version - 1].migrate(db);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,222 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes every pet to a pipe as CSV or JSON, for {@link PetProvider#openTypedAssetFile}.
+ * <p>
+ * The table is read in chunks of {@link #CHUNK_SIZE} pets with keyset paging, and each chunk
+ * is written out and its cursor closed before the next one is read. Memory use therefore stays
+ * the same however many pets there are, and the reader gets the first pets right away. Each
+ * chunk is a separate read, so pets written while the export runs may or may not be included,
+ * but no pet is ever exported twice.
+ */
+class PetExportWriter implements ContentProvider.PipeDataWriter<Void> {
+
+    private static final String LOG_TAG = PetExportWriter.class.getSimpleName();
+
+    /** Number of pets read from the database at a time */
+    static final int CHUNK_SIZE = 500;
+
+    /** Columns written for every pet, in order */
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    private static final String SQL_CHUNK = "SELECT " + PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT
+            + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " > ? AND " + PetProvider.LIVE_SELECTION
+            + " ORDER BY " + PetEntry._ID + " LIMIT " + CHUNK_SIZE;
+
+    private final PetDbHelper mDbHelper;
+
+    PetExportWriter(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, Void args) {
+        boolean json = PetContract.MIME_TYPE_JSON.equals(mimeType);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new ParcelFileDescriptor.AutoCloseOutputStream(output), Charset.forName("UTF-8")));
+        try {
+            if (json) {
+                writer.write('[');
+            } else {
+                writeCsvHeader(writer);
+            }
+
+            long afterId = 0;
+            boolean first = true;
+            while (true) {
+                Cursor cursor = mDbHelper.getReadableDatabase().rawQuery(SQL_CHUNK,
+                        new String[]{String.valueOf(afterId)});
+                int count;
+                try {
+                    count = cursor.getCount();
+                    while (cursor.moveToNext()) {
+                        if (json) {
+                            writeJsonPet(writer, cursor, first);
+                        } else {
+                            writeCsvPet(writer, cursor);
+                        }
+                        first = false;
+                        afterId = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (count < CHUNK_SIZE) {
+                    break;
+                }
+            }
+
+            if (json) {
+                writer.write("]\n");
+            }
+        } catch (IOException e) {
+            // The reader closed its end of the pipe, there is nobody left to write to
+            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close export of " + uri, e);
+            }
+        }
+    }
+
+    private static void writeCsvHeader(Writer writer) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(COLUMNS[i]);
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * Write the current pet as a CSV record. A missing breed is written as an empty field.
+     */
+    private static void writeCsvPet(Writer writer, Cursor cursor) throws IOException {
+        writer.write(Long.toString(cursor.getLong(0)));
+        writer.write(',');
+        writeCsvText(writer, cursor.getString(1));
+        writer.write(',');
+        writeCsvText(writer, cursor.isNull(2) ? null : cursor.getString(2));
+        writer.write(',');
+        writer.write(Integer.toString(cursor.getInt(3)));
+        writer.write(',');
+        writer.write(Integer.toString(cursor.getInt(4)));
+        writer.write("\r\n");
+    }
+
+    /**
+     * Write a CSV field, quoted if it holds a comma, quote or line break.
+     */
+    private static void writeCsvText(Writer writer, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(text);
+            return;
+        }
+        writer.write('"');
+        writer.write(text.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /**
+     * Write the current pet as a JSON object, preceded by a comma unless it is the first.
+     */
+    private static void writeJsonPet(Writer writer, Cursor cursor, boolean first)
+            throws IOException {
+        writer.write(first ? "\n{\"" : ",\n{\"");
+        writer.write(COLUMNS[0]);
+        writer.write("\":");
+        writer.write(Long.toString(cursor.getLong(0)));
+        writer.write(",\"");
+        writer.write(COLUMNS[1]);
+        writer.write("\":");
+        writeJsonText(writer, cursor.getString(1));
+        writer.write(",\"");
+        writer.write(COLUMNS[2]);
+        writer.write("\":");
+        writeJsonText(writer, cursor.isNull(2) ? null : cursor.getString(2));
+        writer.write(",\"");
+        writer.write(COLUMNS[3]);
+        writer.write("\":");
+        writer.write(Integer.toString(cursor.getInt(3)));
+        writer.write(",\"");
+        writer.write(COLUMNS[4]);
+        writer.write("\":");
+        writer.write(Integer.toString(cursor.getInt(4)));
+        writer.write('}');
+    }
+
+    /**
+     * Write a JSON string, or null.
+     */
+    private static void writeJsonText(Writer writer, String text) throws IOException {
+        if (text == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
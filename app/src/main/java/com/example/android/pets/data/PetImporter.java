@@ -0,0 +1,517 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDiskIOException;
+import android.database.sqlite.SQLiteFullException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.ImportEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Imports pets from a CSV or JSON file, for {@link PetContract#METHOD_IMPORT_PETS}.
+ * <p>
+ * The file is parsed one record at a time, so it never has to fit in memory. Its pets are
+ * inserted in chunks, and each chunk is committed in the same transaction as the number of
+ * records read so far, in the {@link ImportEntry} table. After a crash the import therefore
+ * resumes with the first record that wasn't committed: the records before it are parsed again
+ * and skipped, and none is inserted twice.
+ * <p>
+ * A file is imported by one call at a time. A second call for the same file waits for the
+ * first, and then resumes from its progress, so the two never insert the same records. Files
+ * of different sources are imported side by side.
+ */
+class PetImporter {
+
+    private static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    /** Number of pets committed at a time when the caller doesn't ask for a chunk size */
+    static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /**
+     * Called after each chunk is committed.
+     */
+    interface Listener {
+        void onChunkCommitted();
+    }
+
+    private final PetDbHelper mDbHelper;
+    private final PetStatementCache mStatementCache;
+    private final ContentResolver mResolver;
+    private final Listener mListener;
+
+    /**
+     * Locks of the files being imported, by source, see {@link #lockSource}. Guarded by
+     * itself
+     */
+    private final HashMap<String, SourceLock> mSourceLocks = new HashMap<>();
+
+    PetImporter(PetDbHelper dbHelper, PetStatementCache statementCache, ContentResolver resolver,
+                Listener listener) {
+        mDbHelper = dbHelper;
+        mStatementCache = statementCache;
+        mResolver = resolver;
+        mListener = listener;
+    }
+
+    /**
+     * Import the given file, or resume its import, and return the progress of the import.
+     * Throws an {@link IllegalArgumentException} if the file can't be read or isn't well formed,
+     * after committing the chunks before the problem.
+     */
+    Bundle importPets(Uri source, String mimeType, int chunkSize, boolean restart) {
+        if (!PetContract.MIME_TYPE_CSV.equals(mimeType)
+                && !PetContract.MIME_TYPE_JSON.equals(mimeType)) {
+            throw new IllegalArgumentException("Cannot import pets of type " + mimeType);
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid import chunk size " + chunkSize);
+        }
+
+        SourceLock lock = lockSource(source.toString());
+        try {
+            synchronized (lock) {
+                return importLocked(source, mimeType, chunkSize, restart);
+            }
+        } finally {
+            unlockSource(source.toString(), lock);
+        }
+    }
+
+    /**
+     * Import the given file, holding the lock of its source.
+     */
+    private Bundle importLocked(Uri source, String mimeType, int chunkSize, boolean restart) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        String[] sourceArgs = {source.toString()};
+        if (restart) {
+            db.delete(ImportEntry.TABLE_NAME, ImportEntry.COLUMN_SOURCE + "=?", sourceArgs);
+        }
+        ContentValues progress = readProgress(db, source, mimeType);
+        if (progress.getAsInteger(ImportEntry.COLUMN_DONE) == 1) {
+            return toBundle(progress);
+        }
+
+        RecordReader reader = null;
+        try {
+            InputStream in = mResolver.openInputStream(source);
+            if (in == null) {
+                throw new IllegalArgumentException("Cannot open " + source);
+            }
+            Reader text = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+            reader = PetContract.MIME_TYPE_JSON.equals(mimeType)
+                    ? new JsonRecordReader(text)
+                    : new CsvRecordReader(text);
+
+            // Skip what the earlier, interrupted runs already committed
+            long recordsRead = progress.getAsLong(ImportEntry.COLUMN_RECORDS_READ);
+            for (long i = 0; i < recordsRead; i++) {
+                if (reader.next() == null) {
+                    break;
+                }
+            }
+
+            boolean done = false;
+            while (!done) {
+                done = importChunk(db, reader, chunkSize, progress, sourceArgs);
+                mListener.onChunkCommitted();
+            }
+            return toBundle(progress);
+        } catch (IOException | IllegalStateException e) {
+            // IllegalStateException is how JsonReader reports malformed JSON
+            throw new IllegalArgumentException("Cannot import " + source + ": " + e.getMessage());
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Insert the next chunk of pets and commit it with the progress. Return true if the end of
+     * the file was reached.
+     */
+    private boolean importChunk(SQLiteDatabase db, RecordReader reader, int chunkSize,
+                                ContentValues progress, String[] sourceArgs)
+            throws IOException {
+        long recordsRead = progress.getAsLong(ImportEntry.COLUMN_RECORDS_READ);
+        long inserted = progress.getAsLong(ImportEntry.COLUMN_ROWS_INSERTED);
+        long rejected = progress.getAsLong(ImportEntry.COLUMN_ROWS_REJECTED);
+        boolean done = false;
+
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < chunkSize; i++) {
+                ContentValues pet = reader.next();
+                if (pet == null) {
+                    done = true;
+                    break;
+                }
+                recordsRead++;
+                try {
+                    parseNumbers(pet);
+                    PetProvider.validatePet(pet);
+                } catch (IllegalArgumentException e) {
+                    Log.w(LOG_TAG, "Skipping record " + recordsRead + ": " + e.getMessage());
+                    rejected++;
+                    continue;
+                }
+                try {
+                    if (mStatementCache.insert(pet) != -1) {
+                        inserted++;
+                    } else {
+                        rejected++;
+                    }
+                } catch (SQLiteFullException | SQLiteDiskIOException e) {
+                    // Not the record's fault, so no other record would be inserted either
+                    throw e;
+                } catch (SQLException e) {
+                    // A constraint of the table rejected the record, which leaves the rest of
+                    // the chunk as it was
+                    Log.w(LOG_TAG, "Skipping record " + recordsRead + ": " + e.getMessage());
+                    rejected++;
+                }
+            }
+
+            ContentValues update = new ContentValues();
+            update.put(ImportEntry.COLUMN_RECORDS_READ, recordsRead);
+            update.put(ImportEntry.COLUMN_ROWS_INSERTED, inserted);
+            update.put(ImportEntry.COLUMN_ROWS_REJECTED, rejected);
+            update.put(ImportEntry.COLUMN_DONE, done ? 1 : 0);
+            db.update(ImportEntry.TABLE_NAME, update, ImportEntry.COLUMN_SOURCE + "=?",
+                    sourceArgs);
+            db.setTransactionSuccessful();
+            progress.putAll(update);
+        } finally {
+            db.endTransaction();
+        }
+        return done;
+    }
+
+    /**
+     * Convert the gender and weight read as text to numbers. Throws an
+     * {@link IllegalArgumentException} if one of them isn't a number, which the checks of an
+     * insert would otherwise take for a missing value.
+     */
+    private static void parseNumbers(ContentValues pet) {
+        String[] columns = {PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT};
+        for (String column : columns) {
+            String text = pet.getAsString(column);
+            if (text == null) {
+                continue;
+            }
+            try {
+                pet.put(column, Integer.valueOf(text.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Pet requires a valid " + column);
+            }
+        }
+    }
+
+    /**
+     * Return the committed progress of the import of the given file, starting a new import if
+     * there is none.
+     */
+    private static ContentValues readProgress(SQLiteDatabase db, Uri source, String mimeType) {
+        ContentValues progress = new ContentValues();
+        Cursor cursor = db.query(ImportEntry.TABLE_NAME, new String[]{
+                        ImportEntry.COLUMN_MIME_TYPE,
+                        ImportEntry.COLUMN_RECORDS_READ,
+                        ImportEntry.COLUMN_ROWS_INSERTED,
+                        ImportEntry.COLUMN_ROWS_REJECTED,
+                        ImportEntry.COLUMN_DONE},
+                ImportEntry.COLUMN_SOURCE + "=?", new String[]{source.toString()},
+                null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                if (!mimeType.equals(cursor.getString(0))) {
+                    throw new IllegalArgumentException("Import of " + source
+                            + " was started as " + cursor.getString(0));
+                }
+                progress.put(ImportEntry.COLUMN_SOURCE, source.toString());
+                progress.put(ImportEntry.COLUMN_MIME_TYPE, mimeType);
+                progress.put(ImportEntry.COLUMN_RECORDS_READ, cursor.getLong(1));
+                progress.put(ImportEntry.COLUMN_ROWS_INSERTED, cursor.getLong(2));
+                progress.put(ImportEntry.COLUMN_ROWS_REJECTED, cursor.getLong(3));
+                progress.put(ImportEntry.COLUMN_DONE, cursor.getInt(4));
+                return progress;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        progress.put(ImportEntry.COLUMN_SOURCE, source.toString());
+        progress.put(ImportEntry.COLUMN_MIME_TYPE, mimeType);
+        progress.put(ImportEntry.COLUMN_RECORDS_READ, 0L);
+        progress.put(ImportEntry.COLUMN_ROWS_INSERTED, 0L);
+        progress.put(ImportEntry.COLUMN_ROWS_REJECTED, 0L);
+        progress.put(ImportEntry.COLUMN_DONE, 0);
+        db.insertOrThrow(ImportEntry.TABLE_NAME, null, progress);
+        return progress;
+    }
+
+    /**
+     * Return the lock of the given source, creating it if no other call holds it, and count
+     * this call as one of its users.
+     */
+    private SourceLock lockSource(String source) {
+        synchronized (mSourceLocks) {
+            SourceLock lock = mSourceLocks.get(source);
+            if (lock == null) {
+                lock = new SourceLock();
+                mSourceLocks.put(source, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    /**
+     * Stop using the lock of the given source, and forget it once no call uses it.
+     */
+    private void unlockSource(String source, SourceLock lock) {
+        synchronized (mSourceLocks) {
+            lock.users--;
+            if (lock.users == 0) {
+                mSourceLocks.remove(source);
+            }
+        }
+    }
+
+    /**
+     * Lock an import of a source holds while it runs.
+     */
+    private static final class SourceLock {
+
+        /** Calls that hold or wait for the lock. Guarded by {@link #mSourceLocks} */
+        int users;
+    }
+
+    private static Bundle toBundle(ContentValues progress) {
+        Bundle bundle = new Bundle();
+        bundle.putString(ImportEntry.COLUMN_SOURCE,
+                progress.getAsString(ImportEntry.COLUMN_SOURCE));
+        bundle.putString(ImportEntry.COLUMN_MIME_TYPE,
+                progress.getAsString(ImportEntry.COLUMN_MIME_TYPE));
+        bundle.putLong(ImportEntry.COLUMN_RECORDS_READ,
+                progress.getAsLong(ImportEntry.COLUMN_RECORDS_READ));
+        bundle.putLong(ImportEntry.COLUMN_ROWS_INSERTED,
+                progress.getAsLong(ImportEntry.COLUMN_ROWS_INSERTED));
+        bundle.putLong(ImportEntry.COLUMN_ROWS_REJECTED,
+                progress.getAsLong(ImportEntry.COLUMN_ROWS_REJECTED));
+        bundle.putInt(ImportEntry.COLUMN_DONE, progress.getAsInteger(ImportEntry.COLUMN_DONE));
+        return bundle;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to close import file", e);
+        }
+    }
+
+    /**
+     * Reads the records of an import file one at a time.
+     */
+    private interface RecordReader extends Closeable {
+
+        /**
+         * Return the values of the next record, keyed by pet column, or null at the end of the
+         * file. The values are the text of the file, so they are checked and converted by the
+         * same code as the values of an insert.
+         */
+        ContentValues next() throws IOException;
+    }
+
+    /**
+     * Reads CSV records. The first record names the columns, in any order, and columns other
+     * than the pet columns, such as the {@link PetEntry#_ID} of an export, are ignored.
+     */
+    private static final class CsvRecordReader implements RecordReader {
+
+        private final Reader mReader;
+        private List<String> mHeader;
+
+        /** A character read ahead of the current record, or -2 if there is none */
+        private int mPushedBack = -2;
+
+        CsvRecordReader(Reader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            if (mHeader == null) {
+                mHeader = readRecord();
+                if (mHeader == null) {
+                    return null;
+                }
+            }
+
+            List<String> fields = readRecord();
+            if (fields == null) {
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < mHeader.size() && i < fields.size(); i++) {
+                String column = mHeader.get(i);
+                String value = fields.get(i);
+                if (PetEntry.COLUMN_PET_NAME.equals(column)) {
+                    values.put(column, value);
+                } else if (PetEntry.COLUMN_PET_BREED.equals(column)
+                        || PetEntry.COLUMN_PET_GENDER.equals(column)
+                        || PetEntry.COLUMN_PET_WEIGHT.equals(column)) {
+                    // An empty field is a missing value
+                    if (!value.isEmpty()) {
+                        values.put(column, value);
+                    }
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Read the fields of the next non-empty record, or return null at the end of the file.
+         */
+        private List<String> readRecord() throws IOException {
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            boolean empty = true;
+
+            int c;
+            while ((c = read()) != -1) {
+                if (quoted) {
+                    if (c == '"') {
+                        int next = read();
+                        if (next == '"') {
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                            mPushedBack = next;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                    empty = false;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                    empty = false;
+                } else if (c == '\r' || c == '\n') {
+                    if (c == '\r') {
+                        int next = read();
+                        if (next != '\n') {
+                            mPushedBack = next;
+                        }
+                    }
+                    if (!empty || field.length() > 0) {
+                        break;
+                    }
+                } else {
+                    field.append((char) c);
+                    empty = false;
+                }
+            }
+
+            if (quoted) {
+                throw new IOException("Unterminated quoted field");
+            }
+            if (empty && field.length() == 0) {
+                return null;
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+
+        private int read() throws IOException {
+            if (mPushedBack != -2) {
+                int c = mPushedBack;
+                mPushedBack = -2;
+                return c;
+            }
+            return mReader.read();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Reads a JSON array holding one object per pet, with {@link JsonReader} so only the
+     * current pet is in memory. Fields other than the pet columns are ignored.
+     */
+    private static final class JsonRecordReader implements RecordReader {
+
+        private final JsonReader mReader;
+        private boolean mStarted;
+
+        JsonRecordReader(Reader reader) {
+            mReader = new JsonReader(reader);
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            if (!mStarted) {
+                mReader.beginArray();
+                mStarted = true;
+            }
+            if (!mReader.hasNext()) {
+                return null;
+            }
+
+            ContentValues values = new ContentValues();
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String name = mReader.nextName();
+                boolean petColumn = PetEntry.COLUMN_PET_NAME.equals(name)
+                        || PetEntry.COLUMN_PET_BREED.equals(name)
+                        || PetEntry.COLUMN_PET_GENDER.equals(name)
+                        || PetEntry.COLUMN_PET_WEIGHT.equals(name);
+                JsonToken token = mReader.peek();
+                if (!petColumn) {
+                    mReader.skipValue();
+                } else if (token == JsonToken.NULL) {
+                    mReader.nextNull();
+                } else if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                    // Numbers are kept as text and converted the same way as CSV fields
+                    values.put(name, mReader.nextString());
+                } else {
+                    throw new IOException("Invalid value for " + name);
+                }
+            }
+            mReader.endObject();
+            return values;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the operations {@link PetProvider} serves, kept
+ * separately for every operation and URI match. Recording an operation only updates a few
+ * atomic counters, with no locks and no allocation, so it is cheap enough to leave on.
+ * <p>
+ * Latencies are counted in fixed buckets, see {@link #BUCKET_BOUNDS_MICROS}, so percentiles
+ * can be estimated from a snapshot without keeping every sample.
+ */
+class PetMetrics {
+
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_BULK_INSERT = 2;
+    static final int OP_UPDATE = 3;
+    static final int OP_DELETE = 4;
+    static final int OP_APPLY_BATCH = 5;
+    static final int OP_IMPORT = 6;
+    static final int OP_READ_COLUMNAR = 7;
+    static final int OP_WRITE_COLUMNAR = 8;
+
+    /** Names of the operations, indexed by the OP_ constants */
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulk_insert", "update", "delete", "apply_batch", "import",
+            "read_columnar", "write_columnar" };
+
+    /** Names of the URI matches, indexed by {@link #matchIndex} */
+    private static final String[] MATCH_NAMES = {
+            "pet_id", "pets", "search", "stats", "imports", "sections", "unknown" };
+
+    /**
+     * Upper bounds of the latency buckets in microseconds. Bucket i counts the operations that
+     * took at most BUCKET_BOUNDS_MICROS[i], and one more bucket counts the slower ones.
+     */
+    static final long[] BUCKET_BOUNDS_MICROS = {
+            50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 1000000 };
+
+    // Offsets of the counters of one series
+    private static final int COUNT = 0;
+    private static final int ERRORS = 1;
+    private static final int ROWS = 2;
+    private static final int TOTAL_NANOS = 3;
+    private static final int MAX_NANOS = 4;
+    private static final int FIRST_BUCKET = 5;
+    private static final int SERIES_SIZE = FIRST_BUCKET + BUCKET_BOUNDS_MICROS.length + 1;
+
+    /** The counters of every series, one series after the other */
+    private final AtomicLongArray mCounters =
+            new AtomicLongArray(OPERATION_NAMES.length * MATCH_NAMES.length * SERIES_SIZE);
+
+    /** Time of the last reset, in {@link SystemClock#elapsedRealtime()} milliseconds */
+    private volatile long mSinceMillis = SystemClock.elapsedRealtime();
+
+    /**
+     * Record one operation.
+     *
+     * @param operation one of the OP_ constants
+     * @param match     the {@link PetProvider#sUriMatcher} code of the URI
+     * @param rows      rows the operation returned or affected
+     * @param nanos     time the operation took
+     * @param success   false if the operation threw
+     */
+    void record(int operation, int match, int rows, long nanos, boolean success) {
+        int base = (operation * MATCH_NAMES.length + matchIndex(match)) * SERIES_SIZE;
+        mCounters.incrementAndGet(base + COUNT);
+        if (!success) {
+            mCounters.incrementAndGet(base + ERRORS);
+        }
+        mCounters.addAndGet(base + ROWS, rows);
+        mCounters.addAndGet(base + TOTAL_NANOS, nanos);
+
+        long max;
+        do {
+            max = mCounters.get(base + MAX_NANOS);
+        } while (nanos > max && !mCounters.compareAndSet(base + MAX_NANOS, max, nanos));
+
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        mCounters.incrementAndGet(base + FIRST_BUCKET + bucket);
+    }
+
+    /**
+     * Zero every counter. Operations recorded while the reset runs may be partly kept.
+     */
+    void reset() {
+        for (int i = 0; i < mCounters.length(); i++) {
+            mCounters.set(i, 0);
+        }
+        mSinceMillis = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Return a snapshot of the counters in the layout described by
+     * {@link PetContract#METHOD_GET_METRICS}. Series with no operations are left out.
+     */
+    Bundle getSnapshot() {
+        Bundle snapshot = new Bundle();
+        snapshot.putLong(PetContract.KEY_METRICS_ELAPSED_MILLIS,
+                SystemClock.elapsedRealtime() - mSinceMillis);
+        snapshot.putLongArray(PetContract.KEY_METRICS_BUCKET_BOUNDS_MICROS,
+                BUCKET_BOUNDS_MICROS.clone());
+
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int match = 0; match < MATCH_NAMES.length; match++) {
+                int base = (operation * MATCH_NAMES.length + match) * SERIES_SIZE;
+                long count = mCounters.get(base + COUNT);
+                if (count == 0) {
+                    continue;
+                }
+
+                Bundle series = new Bundle();
+                series.putLong(PetContract.KEY_METRIC_COUNT, count);
+                series.putLong(PetContract.KEY_METRIC_ERRORS, mCounters.get(base + ERRORS));
+                series.putLong(PetContract.KEY_METRIC_ROWS, mCounters.get(base + ROWS));
+                series.putLong(PetContract.KEY_METRIC_TOTAL_MICROS,
+                        mCounters.get(base + TOTAL_NANOS) / 1000);
+                series.putLong(PetContract.KEY_METRIC_MAX_MICROS,
+                        mCounters.get(base + MAX_NANOS) / 1000);
+                long[] buckets = new long[BUCKET_BOUNDS_MICROS.length + 1];
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = mCounters.get(base + FIRST_BUCKET + i);
+                }
+                series.putLongArray(PetContract.KEY_METRIC_HISTOGRAM, buckets);
+                snapshot.putBundle(OPERATION_NAMES[operation] + "/" + MATCH_NAMES[match], series);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Return the name of the series of an operation on a URI, for example "query/pets".
+     */
+    static String getSeriesName(int operation, int match) {
+        return OPERATION_NAMES[operation] + "/" + MATCH_NAMES[matchIndex(match)];
+    }
+
+    /**
+     * Return the index into {@link #MATCH_NAMES} of a URI matcher code.
+     */
+    private static int matchIndex(int match) {
+        switch (match) {
+            case PetProvider.PET_ID:
+                return 0;
+            case PetProvider.PETS:
+                return 1;
+            case PetProvider.PET_SEARCH:
+                return 2;
+            case PetProvider.PET_STATS:
+                return 3;
+            case PetProvider.PET_IMPORTS:
+                return 4;
+            case PetProvider.PET_SECTIONS:
+                return 5;
+            default:
+                return 6;
+        }
+    }
+}
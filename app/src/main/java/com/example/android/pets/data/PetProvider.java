@@ -1,18 +1,41 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import com.example.android.pets.data.PetContract.ImportEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.SectionEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 
 /**
  * Created by Jeffrey on 08-Oct-17.
@@ -24,32 +47,178 @@ public class PetProvider extends ContentProvider {
 
     public static final int PET_ID = 100;
     public static final int PETS = 101;
+    public static final int PET_SEARCH = 102;
+    public static final int PET_STATS = 103;
+    public static final int PET_IMPORTS = 104;
+    public static final int PET_SECTIONS = 105;
 
     public static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH, PET_SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS, PET_STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_IMPORTS, PET_IMPORTS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SECTIONS, PET_SECTIONS);
     }
 
+    /** SQL used to insert one pet with a compiled statement, see {@link #bulkInsert} */
+    static final String SQL_INSERT_PET = "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    /** Selection of a single pet by id */
+    private static final String ID_SELECTION = PetEntry._ID + "=?";
+
+    /** Count of the pets with the given id that aren't deleted, 0 or 1 */
+    private static final String SQL_COUNT_LIVE_BY_ID = "SELECT COUNT(*) FROM "
+            + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + "=? AND "
+            + PetEntry.COLUMN_PET_DELETED_AT + " IS NULL";
+
+    /** Selection of the pets that aren't deleted, see {@link PetEntry#COLUMN_PET_DELETED_AT} */
+    static final String LIVE_SELECTION = PetEntry.COLUMN_PET_DELETED_AT + " IS NULL";
+
+    /** Number of search results returned when the search URI doesn't ask for a page size */
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    /** Columns of the pets table a search may return */
+    private static final Set<String> SEARCH_COLUMNS = new HashSet<>(Arrays.asList(
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT));
+
+    /** Columns of the sections URI */
+    private static final String[] SECTION_COLUMNS = {
+            SectionEntry.COLUMN_SECTION,
+            SectionEntry.COLUMN_POSITION,
+            SectionEntry.COLUMN_PET_COUNT };
+
+    /** Columns of the statistics URI, including the computed average weight */
+    private static final String[] STATS_COLUMNS = {
+            StatsEntry.COLUMN_GENDER,
+            StatsEntry.COLUMN_PET_COUNT,
+            StatsEntry.COLUMN_WEIGHT_SUM,
+            StatsEntry.COLUMN_MIN_WEIGHT,
+            StatsEntry.COLUMN_MAX_WEIGHT,
+            StatsEntry.COLUMN_AVERAGE_WEIGHT };
+
+    /** Types the pets table can be exported as, see {@link #openTypedAssetFile} */
+    private static final String[] EXPORT_MIME_TYPES = {
+            PetContract.MIME_TYPE_CSV,
+            PetContract.MIME_TYPE_JSON };
+
     /**
      * Initialize the provider and the db helper object
      */
     private PetDbHelper mPetDbHelper;
 
+    /**
+     * URIs whose change notifications are being held back until the batch running on the
+     * current thread commits, see {@link #applyBatch}. Null when no batch is running.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<>();
+
+    /** Sends change notifications in coalesced bursts, see {@link PetChangeNotifier} */
+    private PetChangeNotifier mChangeNotifier;
+
+    /** Estimated size in bytes of the pet rows kept in the row cache */
+    private static final int ROW_CACHE_SIZE_BYTES = 256 * 1024;
+
+    /** Recently read pets, used to answer PET_ID queries, see {@link PetRowCache} */
+    private PetRowCache mRowCache;
+
+    /** Counters and latencies of every operation, see {@link PetMetrics} */
+    private final PetMetrics mMetrics = new PetMetrics();
+
+    /** Operations over the slow query threshold, see {@link PetSlowQueryLog} */
+    private PetSlowQueryLog mSlowLog;
+
+    /** Streams the pets table to export pipes, see {@link PetExportWriter} */
+    private PetExportWriter mExportWriter;
+
+    /** Imports pets from files, see {@link PetImporter} */
+    private PetImporter mImporter;
+
+    /** Compiled statements for the most frequent writes, see {@link PetStatementCache} */
+    private PetStatementCache mStatementCache;
+
+    /** Reads and writes pets as columnar Bundles, see {@link PetColumnarTransfer} */
+    private PetColumnarTransfer mColumnarTransfer;
+
+    /** Removes deleted pets for good in the background, see {@link PetCompactor} */
+    private PetCompactor mCompactor;
+
 
     @Override
     public boolean onCreate() {
+        PetStartupTrace.mark(PetContract.KEY_STARTUP_PROVIDER_CREATED);
         // Make sure the variable is a global variable, so it can be reference from other
         // ContentProvider methods.
         mPetDbHelper = new PetDbHelper(getContext());
+        //Open the database in the background now, rather than on the first query
+        new PetWarmer(mPetDbHelper).start();
+        mChangeNotifier = new PetChangeNotifier(getContext().getContentResolver());
+        mRowCache = new PetRowCache(ROW_CACHE_SIZE_BYTES);
+        mSlowLog = new PetSlowQueryLog(mPetDbHelper);
+        mExportWriter = new PetExportWriter(mPetDbHelper);
+        mStatementCache = new PetStatementCache(mPetDbHelper);
+        mColumnarTransfer = new PetColumnarTransfer(mPetDbHelper, mStatementCache);
+        mCompactor = new PetCompactor(mPetDbHelper);
+        //Finish the compaction an earlier process may have left
+        mCompactor.schedule();
+        mImporter = new PetImporter(mPetDbHelper, mStatementCache,
+                getContext().getContentResolver(), new PetImporter.Listener() {
+                    @Override
+                    public void onChunkCommitted() {
+                        //Loaders see the imported pets, and the progress, chunk by chunk
+                        notifyChange(PetEntry.CONTENT_URI);
+                    }
+                });
         return false;
     }
 
+    @Override
+    public void shutdown() {
+        mChangeNotifier.shutdown();
+        mCompactor.shutdown();
+        mStatementCache.close();
+        mPetDbHelper.close();
+        super.shutdown();
+    }
+
     @Nullable
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
                         @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean success = false;
+        try {
+            Cursor cursor = queryUri(uri, projection, selection, selectionArgs, sortOrder);
+            //Counting the rows runs the query now rather than on the caller's first move, so
+            //the time recorded includes reading the rows
+            rows = cursor.getCount();
+            success = true;
+            return cursor;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            mMetrics.record(PetMetrics.OP_QUERY, match, rows, nanos, success);
+            mSlowLog.finish(PetMetrics.OP_QUERY, match, rows, nanos);
+        }
+    }
+
+    private Cursor queryUri(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
 
         //Get a readable database
         SQLiteDatabase database = mPetDbHelper.getReadableDatabase();
@@ -65,7 +234,14 @@ public class PetProvider extends ContentProvider {
                 //For the PETS code, query the pets table directly with the given
                 //projection, selection, selection arguments and sort order. The cursor
                 //could contain multiple rows of the pets table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                if (PetQueryPlanner.isPlanned(uri)) {
+                    //Filters, a sort key or a page size were asked for, so run the query of
+                    //that shape
+                    cursor = queryPlanned(database, uri, projection, selection, selectionArgs,
+                            sortOrder);
+                } else {
+                    cursor = queryTable(database, PetEntry.TABLE_NAME, projection, whereLive(selection), selectionArgs, sortOrder, null);
+                }
                 break;
 
             case PET_ID:
@@ -77,20 +253,415 @@ public class PetProvider extends ContentProvider {
                 //For every "?" in the selection, we need to have an element in the selection
                 //arguments that will fill in the "?". Since we have 1 question mark in the
                 //selection, we hae 1 String in the selection argument' String array.
-                selection = PetEntry._ID + "=?";
+                if (PetRowCache.canServe(projection)) {
+                    //Recently read pets are answered from the row cache
+                    cursor = queryPetRow(database, ContentUris.parseId(uri), projection);
+                    break;
+                }
+                selection = whereLive(ID_SELECTION);
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
 
                 //This will perform a query on the pets table where the _id equals 3 to return a 
                 //Cursor containing that row of the table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = queryTable(database, PetEntry.TABLE_NAME, projection, selection, selectionArgs, sortOrder, null);
+                break;
+            case PET_SEARCH:
+                //For the PET_SEARCH code, look the words of the search up in the full-text
+                //index instead of scanning the pets table
+                cursor = searchPets(database, uri, projection);
+                break;
+            case PET_STATS:
+                //For the PET_STATS code, read the summary table the database keeps up to date,
+                //which has one row per gender however many pets there are
+                cursor = queryStats(database, projection, selection, selectionArgs, sortOrder);
+                break;
+            case PET_SECTIONS:
+                //For the PET_SECTIONS code, count the pets of each first letter in the index
+                //on name
+                cursor = querySections(database, uri, projection);
+                break;
+            case PET_IMPORTS:
+                //For the PET_IMPORTS code, read the progress of the imports
+                cursor = queryTable(database, ImportEntry.TABLE_NAME, projection, selection, selectionArgs, sortOrder, null);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI" + uri);
         }
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        //A cursor for one pet only reloads when that pet changes, every other cursor reloads
+        //when any pet changes
+        cursor.setNotificationUri(getContext().getContentResolver(), getChangeUri(uri));
+        return cursor;
+    }
+
+    /**
+     * Read the statistics of each gender. The average weight isn't stored, so it is computed
+     * from the count and the sum of the weights.
+     */
+    private Cursor queryStats(SQLiteDatabase database, String[] projection, String selection,
+                              String[] selectionArgs, String sortOrder) {
+        String[] columns = projection == null ? STATS_COLUMNS : projection;
+        String[] sqlColumns = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (StatsEntry.COLUMN_AVERAGE_WEIGHT.equals(columns[i])) {
+                sqlColumns[i] = "CASE WHEN " + StatsEntry.COLUMN_PET_COUNT + " > 0 THEN CAST("
+                        + StatsEntry.COLUMN_WEIGHT_SUM + " AS REAL) / "
+                        + StatsEntry.COLUMN_PET_COUNT + " END AS "
+                        + StatsEntry.COLUMN_AVERAGE_WEIGHT;
+            } else if (Arrays.asList(STATS_COLUMNS).contains(columns[i])) {
+                sqlColumns[i] = columns[i];
+            } else {
+                throw new IllegalArgumentException("Unknown column " + columns[i] + " in stats");
+            }
+        }
+        return queryTable(database, StatsEntry.TABLE_NAME, sqlColumns, selection, selectionArgs,
+                sortOrder, null);
+    }
+
+    /**
+     * Read the alphabetical sections of the pets ordered by name, see {@link SectionEntry}.
+     * Starting from the first name, each step seeks to the first name of the next section and
+     * counts the names up to the section after it, both in the index on name. That reads the
+     * index once, in order, and never sorts, so it stays quick however many pets there are.
+     * <p>
+     * The steps are separate statements, so a write committed in between can leave the
+     * positions off by the pets it changed. The cursor is reloaded after that write anyway.
+     */
+    private Cursor querySections(SQLiteDatabase database, Uri uri, String[] projection) {
+        String[] columns = projection == null ? SECTION_COLUMNS : projection;
+        for (String column : columns) {
+            if (!Arrays.asList(SECTION_COLUMNS).contains(column)) {
+                throw new IllegalArgumentException("Unknown column " + column + " in sections");
+            }
+        }
+
+        PetQueryPlanner plan = PetQueryPlanner.planSections(uri);
+        mSlowLog.noteQuery(plan.sectionCountSql, plan.args);
+        MatrixCursor cursor = new MatrixCursor(columns);
+        SQLiteStatement seek = database.compileStatement(plan.sql);
+        SQLiteStatement count = database.compileStatement(plan.sectionCountSql);
+        try {
+            String from = "";
+            long position = 0;
+            while (from != null) {
+                seek.bindString(1, from);
+                bindStrings(seek, 2, plan.args);
+                String name = seek.simpleQueryForString();
+                if (name == null) {
+                    break;
+                }
+
+                // The section is the first character, which may take two chars, and ends
+                // where the names starting with the next character begin. Only the section
+                // of the last character there is has no end.
+                String section;
+                String next;
+                if (name.isEmpty()) {
+                    section = "";
+                    next = "\u0000";
+                } else {
+                    section = name.substring(0, name.offsetByCodePoints(0, 1));
+                    next = PetQueryPlanner.afterPrefix(section);
+                }
+
+                count.bindString(1, section);
+                if (next != null) {
+                    count.bindString(2, next);
+                } else {
+                    //Every text sorts before a blob, so this counts the rest of the names
+                    count.bindBlob(2, new byte[0]);
+                }
+                bindStrings(count, 3, plan.args);
+                long petCount = count.simpleQueryForLong();
+
+                MatrixCursor.RowBuilder row = cursor.newRow();
+                for (String column : columns) {
+                    if (SectionEntry.COLUMN_SECTION.equals(column)) {
+                        row.add(section);
+                    } else if (SectionEntry.COLUMN_POSITION.equals(column)) {
+                        row.add(position);
+                    } else {
+                        row.add(petCount);
+                    }
+                }
+                position += petCount;
+                from = next;
+            }
+        } finally {
+            seek.close();
+            count.close();
+        }
         return cursor;
     }
 
+    /**
+     * Bind the given arguments as strings, starting at the given index.
+     */
+    private static void bindStrings(SQLiteStatement statement, int index, String[] args) {
+        for (String arg : args) {
+            statement.bindString(index++, arg);
+        }
+    }
+
+    /**
+     * Read a single pet, from the row cache if it is there and otherwise from the database,
+     * caching the whole row for the next time.
+     */
+    private Cursor queryPetRow(SQLiteDatabase database, long id, String[] projection) {
+        Object[] row = mRowCache.get(id);
+        if (row == null) {
+            // Read the generation first, so a write that lands during the read keeps the
+            // row it invalidated out of the cache
+            long generation = mRowCache.getGeneration();
+            Cursor cursor = queryTable(database, PetEntry.TABLE_NAME, PetRowCache.COLUMNS,
+                    whereLive(ID_SELECTION), new String[]{String.valueOf(id)}, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return PetRowCache.toCursor(null, projection);
+                }
+                row = PetRowCache.readRow(cursor);
+            } finally {
+                cursor.close();
+            }
+            mRowCache.put(id, row, generation);
+        }
+        return PetRowCache.toCursor(row, projection);
+    }
+
+    /**
+     * Query a table the same way {@link SQLiteDatabase#query} does, noting the SQL for the slow
+     * query log on the way.
+     */
+    private Cursor queryTable(SQLiteDatabase database, String table, String[] columns,
+                              String selection, String[] selectionArgs, String orderBy,
+                              String limit) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, table, columns, selection,
+                null, null, orderBy, limit);
+        mSlowLog.noteQuery(sql, selectionArgs);
+        return database.rawQuery(sql, selectionArgs);
+    }
+
+    /**
+     * Return the given selection narrowed down to the pets that aren't deleted.
+     */
+    static String whereLive(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return LIVE_SELECTION;
+        }
+        return "(" + selection + ") AND " + LIVE_SELECTION;
+    }
+
+    /**
+     * Drop the cached rows the write to the given URI may have changed: the pet's own row for
+     * a single pet, every row for a write by selection.
+     */
+    private void invalidateRowCache(Uri uri) {
+        if (sUriMatcher.match(uri) == PET_ID) {
+            mRowCache.invalidate(ContentUris.parseId(uri));
+        } else {
+            mRowCache.invalidateAll();
+        }
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        int operation;
+        int match;
+        switch (method) {
+            case PetContract.METHOD_IMPORT_PETS:
+                operation = PetMetrics.OP_IMPORT;
+                match = PET_IMPORTS;
+                break;
+            case PetContract.METHOD_READ_PETS_COLUMNAR:
+                operation = PetMetrics.OP_READ_COLUMNAR;
+                match = PETS;
+                break;
+            case PetContract.METHOD_WRITE_PETS_COLUMNAR:
+                operation = PetMetrics.OP_WRITE_COLUMNAR;
+                match = PETS;
+                break;
+            default:
+                //The other methods only read or reset the provider's own state
+                return callMethod(method, arg, extras);
+        }
+
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean success = false;
+        try {
+            Bundle result = callMethod(method, arg, extras);
+            rows = operation == PetMetrics.OP_IMPORT
+                    ? (int) result.getLong(ImportEntry.COLUMN_ROWS_INSERTED)
+                    : result.getLongArray(PetContract.KEY_COLUMN_IDS).length;
+            success = true;
+            return result;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            mMetrics.record(operation, match, rows, nanos, success);
+            mSlowLog.finish(operation, match, rows, nanos);
+        }
+    }
+
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        switch (method) {
+            case PetContract.METHOD_GET_CACHE_STATS:
+                return mRowCache.getStats();
+            case PetContract.METHOD_GET_METRICS:
+                return mMetrics.getSnapshot();
+            case PetContract.METHOD_RESET_METRICS:
+                mMetrics.reset();
+                return null;
+            case PetContract.METHOD_GET_SLOW_QUERIES:
+                return mSlowLog.dump();
+            case PetContract.METHOD_GET_STARTUP_TRACE:
+                return PetStartupTrace.getSteps();
+            case PetContract.METHOD_SET_SLOW_QUERY_THRESHOLD:
+                try {
+                    mSlowLog.setThresholdMillis(Long.parseLong(arg));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid slow query threshold " + arg);
+                }
+                return null;
+            case PetContract.METHOD_IMPORT_PETS:
+                return importPets(arg, extras);
+            case PetContract.METHOD_READ_PETS_COLUMNAR:
+                return readPetsColumnar(extras);
+            case PetContract.METHOD_WRITE_PETS_COLUMNAR:
+                return writePetsColumnar(extras);
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Import the pets of the file at the given URI, see {@link PetContract#METHOD_IMPORT_PETS}.
+     */
+    private Bundle importPets(String source, Bundle extras) {
+        if (source == null || extras == null) {
+            throw new IllegalArgumentException("Import requires a file and its type");
+        }
+        //An import only adds pets, so no cached row can be stale
+        return mImporter.importPets(Uri.parse(source),
+                extras.getString(PetContract.KEY_IMPORT_MIME_TYPE),
+                extras.getInt(PetContract.KEY_IMPORT_CHUNK_SIZE, PetImporter.DEFAULT_CHUNK_SIZE),
+                extras.getBoolean(PetContract.KEY_IMPORT_RESTART, false));
+    }
+
+    /**
+     * Read pets as columns, see {@link PetContract#METHOD_READ_PETS_COLUMNAR}.
+     */
+    private Bundle readPetsColumnar(Bundle extras) {
+        long afterId = 0;
+        int limit = PetColumnarTransfer.DEFAULT_READ_LIMIT;
+        if (extras != null) {
+            afterId = extras.getLong(PetContract.KEY_COLUMNAR_AFTER_ID, afterId);
+            limit = extras.getInt(PetContract.KEY_COLUMNAR_LIMIT, limit);
+        }
+        return mColumnarTransfer.read(afterId, limit);
+    }
+
+    /**
+     * Insert pets given as columns, see {@link PetContract#METHOD_WRITE_PETS_COLUMNAR}.
+     */
+    private Bundle writePetsColumnar(Bundle extras) {
+        if (extras == null) {
+            throw new IllegalArgumentException("Columnar write requires pets");
+        }
+        Bundle result = mColumnarTransfer.write(extras);
+        //Only new pets, so no cached row can be stale, and one notification for all of them
+        if (result.getLongArray(PetContract.KEY_COLUMN_IDS).length > 0) {
+            notifyChange(PetEntry.CONTENT_URI);
+        }
+        return result;
+    }
+
+    /**
+     * Read the pets a query with filters, a sort key or a page size asks for, see
+     * {@link PetQueryPlanner}. Pages use keyset paging. Instead of an OFFSET, which makes SQLite
+     * step over every earlier row, the page starts right after the key of the last pet on the
+     * previous page, so reading any page costs the same. The projection should include the key
+     * columns the caller needs to ask for the next page.
+     */
+    private Cursor queryPlanned(SQLiteDatabase database, Uri uri, String[] projection,
+                                String selection, String[] selectionArgs, String sortOrder) {
+        PetQueryPlanner plan = PetQueryPlanner.plan(uri, projection, selection, selectionArgs,
+                sortOrder);
+        mSlowLog.noteQuery(plan.sql, plan.args);
+        return database.rawQuery(plan.sql, plan.args);
+    }
+
+    /**
+     * Search pets by name and breed through the full-text index. Every word of the search is
+     * matched as a prefix, and pets whose name starts with the first word are ranked first,
+     * then the rest by name. FTS4 on older devices has no built-in relevance function, so the
+     * rank is computed over the matching rows only.
+     */
+    private Cursor searchPets(SQLiteDatabase database, Uri uri, String[] projection) {
+        String query = uri.getQueryParameter(PetEntry.QUERY_PARAM_SEARCH);
+        if (query == null) {
+            throw new IllegalArgumentException("Search requires a query " + uri);
+        }
+
+        int limit = DEFAULT_SEARCH_LIMIT;
+        String pageSize = uri.getQueryParameter(PetEntry.QUERY_PARAM_PAGE_SIZE);
+        if (pageSize != null) {
+            try {
+                limit = Integer.parseInt(pageSize);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page size in " + uri);
+            }
+            if (limit <= 0) {
+                throw new IllegalArgumentException("Invalid page size in " + uri);
+            }
+        }
+
+        //Only letters and digits reach the full-text query, so the user can't write
+        //full-text operators or quotes by accident
+        StringBuilder match = new StringBuilder();
+        String firstWord = null;
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (firstWord == null) {
+                firstWord = word;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+
+        String columns;
+        if (projection == null) {
+            columns = "*";
+        } else {
+            for (String column : projection) {
+                if (!SEARCH_COLUMNS.contains(column)) {
+                    throw new IllegalArgumentException("Unknown column " + column + " in search");
+                }
+            }
+            columns = TextUtils.join(", ", projection);
+        }
+
+        if (firstWord == null) {
+            //Nothing to search for, so nothing matches
+            return queryTable(database, PetEntry.TABLE_NAME, projection, "0", null, null, null);
+        }
+
+        //Deleted pets stay in the full-text index until they are compacted away
+        String sql = "SELECT " + columns + " FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry._ID + " IN (SELECT docid FROM " + PetEntry.FTS_TABLE_NAME
+                + " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH ?)"
+                + " AND " + LIVE_SELECTION
+                + " ORDER BY CASE WHEN " + PetEntry.COLUMN_PET_NAME + " LIKE ? THEN 0 ELSE 1 END, "
+                + PetEntry.COLUMN_PET_NAME
+                + " LIMIT " + limit;
+        String[] args = {match.toString(), firstWord + "%"};
+        mSlowLog.noteQuery(sql, args);
+        return database.rawQuery(sql, args);
+    }
+
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
@@ -100,22 +671,79 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PET_SEARCH:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PET_STATS:
+                return StatsEntry.CONTENT_LIST_TYPE;
+            case PET_IMPORTS:
+                return ImportEntry.CONTENT_LIST_TYPE;
+            case PET_SECTIONS:
+                return SectionEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
+    /**
+     * Return the export types of the pets table that match the filter, or null for any other
+     * URI or if none match.
+     */
+    @Nullable
+    @Override
+    public String[] getStreamTypes(@NonNull Uri uri, @NonNull String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) != PETS) {
+            return null;
+        }
+        ArrayList<String> types = new ArrayList<>();
+        for (String type : EXPORT_MIME_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                types.add(type);
+            }
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    /**
+     * Export the pets table as CSV or JSON. The export is written to a pipe on a background
+     * thread while the caller reads it, so it never has to fit in memory.
+     */
+    @Nullable
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri, @NonNull String mimeTypeFilter,
+                                                  @Nullable Bundle opts)
+            throws FileNotFoundException {
+        String[] types = getStreamTypes(uri, mimeTypeFilter);
+        if (types == null) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        ParcelFileDescriptor pipe = openPipeHelper(uri, types[0], opts, null, mExportWriter);
+        return new AssetFileDescriptor(pipe, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
     @Nullable
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
 
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            //we are only operating on thw whole table
-            case PETS:
-                return insertPet(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        long start = System.nanoTime();
+        Uri newUri = null;
+        boolean success = false;
+        try {
+            switch (match) {
+                //we are only operating on thw whole table
+                case PETS:
+                    newUri = insertPet(uri, contentValues);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+            success = true;
+            return newUri;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            int rows = newUri == null ? 0 : 1;
+            mMetrics.record(PetMetrics.OP_INSERT, match, rows, nanos, success);
+            mSlowLog.finish(PetMetrics.OP_INSERT, match, rows, nanos);
         }
 
     }
@@ -126,6 +754,61 @@ public class PetProvider extends ContentProvider {
      */
     private Uri insertPet(Uri uri, ContentValues values) {
 
+        //data validation of the name, gender and weight of the pet
+        validatePet(values);
+
+        //create a writable database
+        SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+
+        mSlowLog.noteInsert(values);
+        long id;
+        if (PetStatementCache.hasOnlyPetColumns(values)) {
+            // Insert through the compiled insert statement, which fails the same way as
+            // db.insert() below
+            try {
+                id = mStatementCache.insert(values);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Error inserting " + values, e);
+                id = -1;
+            }
+        } else {
+            // Insert a new row for Toto in the database, returning the ID of that new row.
+            // The first argument for db.insert() is the pets table name.
+            // The second argument provides the name of a column in which the framework
+            // can insert NULL in the event that the ContentValues is empty (if
+            // this is set to "null", then the framework will NOT insert a row when
+            // there are no values).
+            // The third argument is the ContentValues object containing the info for Toto.
+            id = db.insert(PetEntry.TABLE_NAME, null, values);
+        }
+        mRowCache.invalidate(id);
+
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        notifyChange(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+
+        // Once we know the ID of the new row in the table,
+        // return the new URI with the ID appended to the end of it
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Check that the given content values describe a valid new pet. Throws an
+     * {@link IllegalArgumentException} if the name, gender or weight is not acceptable.
+     */
+    static void validatePet(ContentValues values) {
+
+        //pets are only deleted through delete(), and the version is the provider's to keep
+        if (values.containsKey(PetEntry.COLUMN_PET_DELETED_AT)) {
+            throw new IllegalArgumentException("Pets cannot be inserted deleted");
+        }
+        if (values.containsKey(PetEntry.COLUMN_PET_VERSION)) {
+            throw new IllegalArgumentException("The version of a pet is set by the provider");
+        }
 
         //data validation of the name of the pet
         String petName = values.getAsString(PetEntry.COLUMN_PET_NAME);
@@ -144,60 +827,262 @@ public class PetProvider extends ContentProvider {
         if (weight != null && weight < 0) {
             throw new IllegalArgumentException("Pet requires a valid weight");
         }
+    }
+
+    /**
+     * Insert many pets at once. Every row is validated the same way as {@link #insertPet}
+     * before anything is written, then all rows are written in a single transaction using
+     * the cached compiled insert statement, and listeners are notified once at the end.
+     * Return the number of rows that were inserted.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rowsInserted = 0;
+        boolean success = false;
+        try {
+            rowsInserted = bulkInsertPets(uri, match, values);
+            success = true;
+            return rowsInserted;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            mMetrics.record(PetMetrics.OP_BULK_INSERT, match, rowsInserted, nanos, success);
+            mSlowLog.finish(PetMetrics.OP_BULK_INSERT, match, rowsInserted, nanos);
+        }
+    }
+
+    private int bulkInsertPets(Uri uri, int match, ContentValues[] values) {
+        if (match != PETS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        // Validate the whole batch up front, so a bad row can't leave half a batch behind.
+        // The compiled statement only writes the pet columns, so a row with any other column
+        // is rejected here rather than written without it, as insertPet's db.insert() would
+        // reject it
+        for (ContentValues value : values) {
+            validatePet(value);
+            if (!PetStatementCache.hasOnlyPetColumns(value)) {
+                throw new IllegalArgumentException("Unknown column in " + value);
+            }
+        }
 
-        //create a writable database
         SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+        mSlowLog.noteQuery(SQL_INSERT_PET, null);
 
-        // Insert a new row for Toto in the database, returning the ID of that new row.
-        // The first argument for db.insert() is the pets table name.
-        // The second argument provides the name of a column in which the framework
-        // can insert NULL in the event that the ContentValues is empty (if
-        // this is set to "null", then the framework will NOT insert a row when
-        // there are no values).
-        // The third argument is the ContentValues object containing the info for Toto.
-        long id = db.insert(PetEntry.TABLE_NAME, null, values);
+        int rowsInserted = 0;
+        // Non-exclusive, so readers keep reading the last committed data while the batch runs
+        db.beginTransactionNonExclusive();
+        try {
+            for (ContentValues value : values) {
+                if (mStatementCache.insert(value) != -1) {
+                    rowsInserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        // One notification for the whole batch instead of one per row
+        if (rowsInserted != 0) {
+            notifyChange(uri);
         }
+        return rowsInserted;
+    }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Bind the columns of a validated pet to the {@link #SQL_INSERT_PET} statement.
+     * A missing breed is stored as NULL and a missing weight as 0, the same as the
+     * column defaults used by {@link SQLiteDatabase#insert}.
+     */
+    static void bindPet(SQLiteStatement statement, ContentValues values) {
+        statement.clearBindings();
+        statement.bindString(1, values.getAsString(PetEntry.COLUMN_PET_NAME));
 
-        // Once we know the ID of the new row in the table,
-        // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
+        String breed = values.getAsString(PetEntry.COLUMN_PET_BREED);
+        if (breed == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, breed);
+        }
+
+        statement.bindLong(3, values.getAsInteger(PetEntry.COLUMN_PET_GENDER));
+
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        statement.bindLong(4, weight == null ? 0 : weight);
+    }
+
+    /**
+     * Apply a batch of insert, update and delete operations atomically. The whole batch runs
+     * in one transaction, so a validation failure in any operation rolls back all of them.
+     * Change notifications are held until the transaction commits and are then sent once
+     * per distinct URI. A batch applied while another runs on the same thread joins it: its
+     * transaction nests in the outer one, and its notifications are sent when the outer batch
+     * commits.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = System.nanoTime();
+        ContentProviderResult[] results = null;
+        boolean success = false;
+        try {
+            results = applyBatchInTransaction(operations);
+            success = true;
+            return results;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            int rows = countRows(results);
+            mMetrics.record(PetMetrics.OP_APPLY_BATCH, PETS, rows, nanos, success);
+            mSlowLog.finish(PetMetrics.OP_APPLY_BATCH, PETS, rows, nanos);
+        }
+    }
+
+    private ContentProviderResult[] applyBatchInTransaction(
+            ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+
+        Set<Uri> pending = mPendingNotifications.get();
+        boolean outermost = pending == null;
+        if (outermost) {
+            pending = new LinkedHashSet<>();
+            mPendingNotifications.set(pending);
+        }
+
+        ContentProviderResult[] results;
+        // Non-exclusive, so readers keep reading the last committed data while the batch runs
+        db.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // insertPet or updatePet rejected a row, or a pet changed since the version an
+            // update expected, so nothing in the batch is kept
+            throw new OperationApplicationException(e.getMessage(), e);
+        } finally {
+            db.endTransaction();
+            if (outermost) {
+                mPendingNotifications.remove();
+                // Rows read while the batch was running may have been cached before it
+                // committed
+                mRowCache.invalidateAll();
+            }
+        }
+
+        // The batch is committed, so it is now safe to let the loaders reload. An inner
+        // batch leaves its notifications to the outer one, which may still roll back
+        if (outermost) {
+            for (Uri uri : pending) {
+                notifyChange(uri);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Return the number of pets inserted, updated or deleted by the applied operations, or 0
+     * if the batch failed.
+     */
+    private static int countRows(ContentProviderResult[] results) {
+        if (results == null) {
+            return 0;
+        }
+        int rows = 0;
+        for (ContentProviderResult result : results) {
+            if (result.uri != null) {
+                rows++;
+            } else if (result.count != null) {
+                rows += result.count;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Notify listeners that the data at the given URI has changed. A write to a single pet only
+     * notifies that pet's URI, which also reaches the listeners on the whole table, while any
+     * other write notifies the whole table. While a batch is running on the current thread the
+     * notification is queued and sent after the batch commits instead.
+     */
+    private void notifyChange(Uri uri) {
+        Uri changeUri = getChangeUri(uri);
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(changeUri);
+            return;
+        }
+        mChangeNotifier.notifyChange(changeUri);
+    }
+
+    /**
+     * Return the URI that changes to the data at the given URI are notified on: the plain URI
+     * of the pet for a single pet, otherwise {@link PetEntry#CONTENT_URI}.
+     */
+    private static Uri getChangeUri(Uri uri) {
+        if (sUriMatcher.match(uri) == PET_ID) {
+            return ContentUris.withAppendedId(PetEntry.CONTENT_URI, ContentUris.parseId(uri));
+        }
+        return PetEntry.CONTENT_URI;
     }
 
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rowsDeleted = 0;
+        boolean success = false;
+        try {
+            rowsDeleted = deletePets(uri, match, selection, selectionArgs);
+            success = true;
+            return rowsDeleted;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            mMetrics.record(PetMetrics.OP_DELETE, match, rowsDeleted, nanos, success);
+            mSlowLog.finish(PetMetrics.OP_DELETE, match, rowsDeleted, nanos);
+        }
+    }
+
+    /**
+     * Soft delete the pets at the given URI: only their deletion time is set, which is quick,
+     * and {@link PetCompactor} removes them for good later in small batches.
+     */
+    private int deletePets(Uri uri, int match, String selection, String[] selectionArgs) {
         SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+        long deletedAt = System.currentTimeMillis();
 
         int rowsDeleted;
         switch (match) {
             case PETS:
-                rowsDeleted = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                ContentValues deleted = new ContentValues(1);
+                deleted.put(PetEntry.COLUMN_PET_DELETED_AT, deletedAt);
+                selection = whereLive(selection);
+                mSlowLog.noteUpdate(deleted, selection, selectionArgs);
+                rowsDeleted = db.update(PetEntry.TABLE_NAME, deleted, selection, selectionArgs);
                 break;
             case PET_ID:
                 // Delete a single row given by the ID in the URI
 
-                // For the PET_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                // For the PET_ID code, extract out the ID from the URI and bind it straight
+                // to the compiled delete statement.
+                mSlowLog.noteQuery(PetStatementCache.SQL_DELETE_BY_ID, null);
+                rowsDeleted = mStatementCache.deleteById(ContentUris.parseId(uri), deletedAt);
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
+        if (rowsDeleted != 0) {
+            mCompactor.schedule();
+        }
+        invalidateRowCache(uri);
+
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         // Return the number of rows deleted
         return rowsDeleted;
@@ -207,16 +1092,29 @@ public class PetProvider extends ContentProvider {
         public int update (@NonNull Uri uri, @Nullable ContentValues values, @Nullable String
         selection, @Nullable String[]selectionArgs){
             final int match = sUriMatcher.match(uri);
+            long start = System.nanoTime();
+            int rowsUpdated = 0;
+            boolean success = false;
+            try {
+                rowsUpdated = updateUri(uri, match, values, selection, selectionArgs);
+                success = true;
+                return rowsUpdated;
+            } finally {
+                long nanos = System.nanoTime() - start;
+                mMetrics.record(PetMetrics.OP_UPDATE, match, rowsUpdated, nanos, success);
+                mSlowLog.finish(PetMetrics.OP_UPDATE, match, rowsUpdated, nanos);
+            }
+        }
+
+        private int updateUri(Uri uri, int match, ContentValues values, String selection,
+                              String[] selectionArgs) {
             switch (match) {
                 case PETS:
                     return updatePet(uri, values, selection, selectionArgs);
                 case PET_ID:
-                    // For the PET_ID code, extract out the ID from the URI,
-                    // so we know which row to update. Selection will be "_id=?" and selection
-                    // arguments will be a String array containing the actual ID.
-                    selection = PetEntry._ID + "=?";
-                    selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                    return updatePet(uri, values, selection, selectionArgs);
+                    // For the PET_ID code, updatePet takes the ID from the URI,
+                    // so there is no selection.
+                    return updatePet(uri, values, null, null);
                 default:
                     throw new IllegalArgumentException("Update is not supported for " + uri);
             }
@@ -224,12 +1122,21 @@ public class PetProvider extends ContentProvider {
 
         /**
          * Update pets in the database with the given content values. Apply the changes to the rows
-         * specified in the selection and selection arguments (which could be 0 or 1 or more pets).
-         * Return the number of rows that were successfully updated.
+         * specified in the selection and selection arguments (which could be 0 or 1 or more pets),
+         * or to the pet of a PET_ID URI. Return the number of rows that were successfully updated.
          */
 
     private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
 
+        // Pets are only deleted, and never brought back, through delete()
+        if (values.containsKey(PetEntry.COLUMN_PET_DELETED_AT)) {
+            throw new IllegalArgumentException("Pets are deleted with delete()");
+        }
+        // Every update increments the version, so it is never set directly
+        if (values.containsKey(PetEntry.COLUMN_PET_VERSION)) {
+            throw new IllegalArgumentException("The version of a pet is set by the provider");
+        }
+
         // Start with performing Sanity Check. Meaning we sanitize the values.
         // No need to check the breed, because we are allowing any value including null.
         // If the {@link PetEntry#COLUMN_PET_NAME} key is present,
@@ -270,14 +1177,104 @@ public class PetProvider extends ContentProvider {
         SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
 
         // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = db.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        int rowsUpdated;
+        if (sUriMatcher.match(uri) == PET_ID) {
+            long id = ContentUris.parseId(uri);
+            long expectedVersion = parseExpectedVersion(uri);
+            if (PetStatementCache.hasOnlyPetColumns(values)) {
+                // The ID is bound straight to a statement compiled once per set of columns
+                mSlowLog.noteUpdate(values, whereLive(ID_SELECTION), null);
+                rowsUpdated = mStatementCache.updateById(id, values, expectedVersion);
+            } else {
+                // SQLite reports the unknown columns
+                selection = whereLive(ID_SELECTION);
+                selectionArgs = new String[]{String.valueOf(id)};
+                if (expectedVersion >= 0) {
+                    selection += " AND " + PetEntry.COLUMN_PET_VERSION + "=?";
+                    selectionArgs = new String[]{String.valueOf(id),
+                            String.valueOf(expectedVersion)};
+                }
+                mSlowLog.noteUpdate(values, selection, selectionArgs);
+                rowsUpdated = updateVersioned(db, values, selection, selectionArgs);
+            }
+            invalidateRowCache(uri);
+
+            // Nothing updated is either a pet that is gone, or one that moved on from the
+            // version the client read, which the client has to hear about
+            if (rowsUpdated == 0 && expectedVersion >= 0
+                    && DatabaseUtils.longForQuery(db, SQL_COUNT_LIVE_BY_ID,
+                    new String[]{String.valueOf(id)}) > 0) {
+                throw new PetVersionConflictException(id, expectedVersion);
+            }
+        } else {
+            if (uri.getQueryParameter(PetEntry.QUERY_PARAM_EXPECTED_VERSION) != null) {
+                throw new IllegalArgumentException("Only a single pet can be updated by version");
+            }
+            selection = whereLive(selection);
+            mSlowLog.noteUpdate(values, selection, selectionArgs);
+            rowsUpdated = updateVersioned(db, values, selection, selectionArgs);
+            invalidateRowCache(uri);
+        }
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
         // given URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
+
+    /**
+     * Return the version the update of a single pet expects, or -1 if the URI has none.
+     */
+    private static long parseExpectedVersion(Uri uri) {
+        String version = uri.getQueryParameter(PetEntry.QUERY_PARAM_EXPECTED_VERSION);
+        if (version == null) {
+            return -1;
+        }
+        try {
+            long expectedVersion = Long.parseLong(version);
+            if (expectedVersion >= 0) {
+                return expectedVersion;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid expected version in " + uri);
+    }
+
+    /**
+     * Set the given values on the pets matching the selection, and increment their version,
+     * which SQLiteDatabase.update has no way to do. Return the number of pets updated.
+     */
+    private static int updateVersioned(SQLiteDatabase db, ContentValues values, String selection,
+                                       String[] selectionArgs) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(PetEntry.TABLE_NAME)
+                .append(" SET ");
+        for (String column : values.keySet()) {
+            sql.append(column).append("=?, ");
+        }
+        sql.append(PetEntry.COLUMN_PET_VERSION).append('=')
+                .append(PetEntry.COLUMN_PET_VERSION).append("+1");
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ").append(selection);
+        }
+
+        SQLiteStatement update = db.compileStatement(sql.toString());
+        try {
+            int index = 1;
+            for (String column : values.keySet()) {
+                DatabaseUtils.bindObjectToProgram(update, index++, values.get(column));
+            }
+            if (selectionArgs != null) {
+                for (String arg : selectionArgs) {
+                    update.bindString(index++, arg);
+                }
+            }
+            return update.executeUpdateDelete();
+        } finally {
+            update.close();
+        }
+    }
 }
 
@@ -0,0 +1,318 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns a query of the {@link PetEntry#CONTENT_URI} with filters, a sort key or a page size,
+ * see {@link PetContract.PetQueryBuilder}, or of the sections of the pets, into SQL for
+ * {@link PetProvider}.
+ * <p>
+ * The SQL is put together from a fixed set of fragments, always in the same order, and every
+ * value, the page size included, is a parameter. The text of the SQL therefore only depends on
+ * which filters are used, the sort key, whether the page has a position and the columns, and
+ * not on any value. SQLite keeps the statements it prepared by their text, see
+ * {@link PetDbHelper#SQL_CACHE_SIZE}, so every query of the same shape reuses one prepared
+ * statement and its plan. Only the pet columns can be read, and a selection written by hand
+ * can't be mixed with the filters.
+ */
+final class PetQueryPlanner {
+
+    /** Columns a query may read, and the columns read when it doesn't ask for any */
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_VERSION };
+
+    private static final List<String> COLUMN_LIST = Arrays.asList(COLUMNS);
+
+    /** Query parameters of the filters */
+    private static final String[] FILTER_PARAMS = {
+            PetEntry.QUERY_PARAM_GENDER,
+            PetEntry.QUERY_PARAM_MIN_WEIGHT,
+            PetEntry.QUERY_PARAM_MAX_WEIGHT,
+            PetEntry.QUERY_PARAM_BREED,
+            PetEntry.QUERY_PARAM_NAME_PREFIX };
+
+    /** The SQL and its arguments */
+    final String sql;
+    final String[] args;
+
+    /** The SQL counting a section, only planned for the sections */
+    final String sectionCountSql;
+
+    private PetQueryPlanner(String sql, String[] args) {
+        this(sql, null, args);
+    }
+
+    private PetQueryPlanner(String sql, String sectionCountSql, String[] args) {
+        this.sql = sql;
+        this.sectionCountSql = sectionCountSql;
+        this.args = args;
+    }
+
+    /**
+     * Return true if the query of the given URI is planned here rather than passed on as is.
+     */
+    static boolean isPlanned(Uri uri) {
+        if (uri.getQueryParameter(PetEntry.QUERY_PARAM_PAGE_SIZE) != null
+                || uri.getQueryParameter(PetEntry.QUERY_PARAM_PAGE_KEY) != null) {
+            return true;
+        }
+        for (String param : FILTER_PARAMS) {
+            if (uri.getQueryParameter(param) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Plan the query of the given URI. A selection is only accepted from callers that page
+     * without filters, as they could before the filters existed. Throws an
+     * {@link IllegalArgumentException} if any part of the query is not acceptable.
+     */
+    static PetQueryPlanner plan(Uri uri, String[] projection, String selection,
+                                String[] selectionArgs, String sortOrder) {
+        if (sortOrder != null) {
+            throw new IllegalArgumentException("Sort with the page key instead of " + sortOrder);
+        }
+
+        String columns;
+        if (projection == null) {
+            columns = TextUtils.join(", ", COLUMNS);
+        } else {
+            for (String column : projection) {
+                if (!COLUMN_LIST.contains(column)) {
+                    throw new IllegalArgumentException("Unknown column " + column + " in " + uri);
+                }
+            }
+            columns = TextUtils.join(", ", projection);
+        }
+
+        StringBuilder where = new StringBuilder(PetProvider.LIVE_SELECTION);
+        ArrayList<String> args = new ArrayList<>();
+
+        boolean filtered = appendFilters(uri, where, args);
+        if (selection != null) {
+            if (filtered) {
+                throw new IllegalArgumentException("Cannot combine a selection with filters");
+            }
+            where.append(" AND (").append(selection).append(')');
+            if (selectionArgs != null) {
+                Collections.addAll(args, selectionArgs);
+            }
+        }
+
+        // Sort key, and the position of the page in it
+        String sortKey = uri.getQueryParameter(PetEntry.QUERY_PARAM_PAGE_KEY);
+        if (sortKey == null) {
+            sortKey = PetEntry._ID;
+        } else if (!PetEntry._ID.equals(sortKey) && !PetEntry.COLUMN_PET_NAME.equals(sortKey)
+                && !PetEntry.COLUMN_PET_WEIGHT.equals(sortKey)) {
+            throw new IllegalArgumentException("Invalid page key in " + uri);
+        }
+        boolean byId = PetEntry._ID.equals(sortKey);
+
+        String pageSize = uri.getQueryParameter(PetEntry.QUERY_PARAM_PAGE_SIZE);
+        String afterId = uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER_ID);
+        String beforeId = uri.getQueryParameter(PetEntry.QUERY_PARAM_BEFORE_ID);
+        if (afterId != null && beforeId != null) {
+            throw new IllegalArgumentException("A page can't start both after and before a pet "
+                    + uri);
+        }
+        boolean before = beforeId != null;
+        if (afterId != null || before) {
+            if (pageSize == null) {
+                throw new IllegalArgumentException("Only a page can start at a pet " + uri);
+            }
+            String positionId = before ? beforeId : afterId;
+            try {
+                Long.parseLong(positionId);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page position in " + uri);
+            }
+            String operator = before ? " < ?" : " > ?";
+            where.append(" AND ");
+            if (byId) {
+                where.append(PetEntry._ID).append(operator);
+            } else {
+                String positionKey;
+                if (PetEntry.COLUMN_PET_NAME.equals(sortKey)) {
+                    positionKey = uri.getQueryParameter(before
+                            ? PetEntry.QUERY_PARAM_BEFORE_NAME : PetEntry.QUERY_PARAM_AFTER_NAME);
+                } else {
+                    positionKey = uri.getQueryParameter(before
+                            ? PetEntry.QUERY_PARAM_BEFORE_WEIGHT
+                            : PetEntry.QUERY_PARAM_AFTER_WEIGHT);
+                }
+                if (positionKey == null) {
+                    throw new IllegalArgumentException("Page requires a " + sortKey
+                            + " position " + uri);
+                }
+                if (!PetEntry.COLUMN_PET_NAME.equals(sortKey)) {
+                    parseInt(uri, positionKey);
+                }
+                //Rows after (or before) (key, _id) in (key, _id) order. The key is a plain
+                //range, so the index on it is walked from the position, and the OR it stands
+                //for is a NOT, which older SQLite would otherwise run as one index lookup per
+                //term, reading every row past the position and sorting them
+                where.append(sortKey).append(before ? " <= ?" : " >= ?")
+                        .append(" AND NOT (").append(sortKey).append(" = ? AND ")
+                        .append(PetEntry._ID).append(before ? " >= ?" : " <= ?").append(')');
+                args.add(positionKey);
+                args.add(positionKey);
+            }
+            args.add(positionId);
+        }
+
+        // A page before a pet walks the index backwards from it, and is then put back in
+        // list order by an outer query, which only sorts the page
+        String order = byId ? sortKey : sortKey + ", " + PetEntry._ID;
+        String innerOrder = byId ? sortKey + " DESC" : sortKey + " DESC, " + PetEntry._ID + " DESC";
+        StringBuilder sql = new StringBuilder("SELECT ").append(columns);
+        if (before) {
+            sql.append(", ").append(sortKey).append(" AS page_key");
+            if (!byId) {
+                sql.append(", ").append(PetEntry._ID).append(" AS page_id");
+            }
+        }
+        sql.append(" FROM ").append(PetEntry.TABLE_NAME)
+                .append(" WHERE ").append(where)
+                .append(" ORDER BY ").append(before ? innerOrder : order);
+        if (pageSize != null) {
+            if (parseInt(uri, pageSize) <= 0) {
+                throw new IllegalArgumentException("Invalid page size in " + uri);
+            }
+            sql.append(" LIMIT ?");
+            args.add(pageSize);
+        }
+        if (before) {
+            sql.insert(0, "SELECT " + columns + " FROM (")
+                    .append(") ORDER BY page_key").append(byId ? "" : ", page_id");
+        }
+        return new PetQueryPlanner(sql.toString(), args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Plan the queries of the sections of the given URI, see {@link PetContract.SectionEntry}.
+     * The {@link #sql} finds the first name at or after the first argument, and the
+     * {@link #sectionCountSql} counts the names from the first argument up to the second. The
+     * {@link #args} are the arguments of the filters, which come after those.
+     */
+    static PetQueryPlanner planSections(Uri uri) {
+        StringBuilder filters = new StringBuilder();
+        ArrayList<String> args = new ArrayList<>();
+        appendFilters(uri, filters, args);
+
+        // Both walk the index on name even when a filter has an index of its own, since
+        // finding the next section through that one would scan every pet it matches again
+        String from = " FROM " + PetEntry.TABLE_NAME
+                + " INDEXED BY " + PetEntry.INDEX_DELETED_AT_NAME
+                + " WHERE " + PetProvider.LIVE_SELECTION
+                + " AND " + PetEntry.COLUMN_PET_NAME + " >= ?";
+        String seekSql = "SELECT MIN(" + PetEntry.COLUMN_PET_NAME + ")" + from + filters;
+        String countSql = "SELECT COUNT(*)" + from
+                + " AND " + PetEntry.COLUMN_PET_NAME + " < ?" + filters;
+        return new PetQueryPlanner(seekSql, countSql, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Append the filters of the given URI to the where clause, each starting with AND, and
+     * their arguments to the arguments. Return true if there was any.
+     */
+    private static boolean appendFilters(Uri uri, StringBuilder where, List<String> args) {
+        boolean filtered = false;
+        String gender = uri.getQueryParameter(PetEntry.QUERY_PARAM_GENDER);
+        if (gender != null) {
+            if (!PetEntry.isValidGender(parseInt(uri, gender))) {
+                throw new IllegalArgumentException("Invalid gender in " + uri);
+            }
+            where.append(" AND ").append(PetEntry.COLUMN_PET_GENDER).append(" = ?");
+            args.add(gender);
+            filtered = true;
+        }
+        String minWeight = uri.getQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT);
+        if (minWeight != null) {
+            parseInt(uri, minWeight);
+            where.append(" AND ").append(PetEntry.COLUMN_PET_WEIGHT).append(" >= ?");
+            args.add(minWeight);
+            filtered = true;
+        }
+        String maxWeight = uri.getQueryParameter(PetEntry.QUERY_PARAM_MAX_WEIGHT);
+        if (maxWeight != null) {
+            parseInt(uri, maxWeight);
+            where.append(" AND ").append(PetEntry.COLUMN_PET_WEIGHT).append(" <= ?");
+            args.add(maxWeight);
+            filtered = true;
+        }
+        String breed = uri.getQueryParameter(PetEntry.QUERY_PARAM_BREED);
+        if (breed != null) {
+            // Same collation as the index on breed, or the index couldn't be used
+            where.append(" AND ").append(PetEntry.COLUMN_PET_BREED).append(" = ? COLLATE NOCASE");
+            args.add(breed);
+            filtered = true;
+        }
+        String namePrefix = uri.getQueryParameter(PetEntry.QUERY_PARAM_NAME_PREFIX);
+        if (namePrefix != null) {
+            // A range of names rather than LIKE, which can't use the indexes on name
+            where.append(" AND ").append(PetEntry.COLUMN_PET_NAME).append(" >= ?");
+            args.add(namePrefix);
+            String end = afterPrefix(namePrefix);
+            if (end != null) {
+                where.append(" AND ").append(PetEntry.COLUMN_PET_NAME).append(" < ?");
+                args.add(end);
+            }
+            filtered = true;
+        }
+        return filtered;
+    }
+
+    /**
+     * Return the first text after every text that starts with the given prefix, or null if
+     * there is none. SQLite compares text by its UTF-8 bytes, which sort like the code points,
+     * so that is the prefix with its last code point incremented, after dropping the code
+     * points that can't be.
+     */
+    static String afterPrefix(String prefix) {
+        int end = prefix.length();
+        while (end > 0) {
+            int last = prefix.codePointBefore(end);
+            end -= Character.charCount(last);
+            if (last < Character.MAX_CODE_POINT) {
+                int after = last + 1;
+                if (after >= Character.MIN_SURROGATE && after <= Character.MAX_SURROGATE) {
+                    after = Character.MAX_SURROGATE + 1;
+                }
+                return prefix.substring(0, end) + new String(Character.toChars(after));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a number of the query, which must not be negative.
+     */
+    private static int parseInt(Uri uri, String value) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number " + value + " in " + uri);
+        }
+        if (number < 0) {
+            throw new IllegalArgumentException("Invalid number " + value + " in " + uri);
+        }
+        return number;
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A bounded cache of recently read pet rows, used by {@link PetProvider} to answer single pet
+ * queries without going to the database. The cache is bounded by the estimated size of the
+ * rows it holds, and the least recently used rows are evicted first.
+ * <p>
+ * Every invalidation bumps a generation counter. A row read from the database is only put in
+ * the cache if no invalidation happened since the read started, so a read that races with a
+ * write can never put the old row back after the write invalidated it.
+ */
+class PetRowCache {
+
+    /** Columns of a cached row, in the order they are stored */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_VERSION };
+
+    private static final List<String> COLUMN_LIST = Arrays.asList(COLUMNS);
+
+    /** Rough size of a cached row without its strings, in bytes */
+    private static final int ROW_OVERHEAD_BYTES = 96;
+
+    private final LruCache<Long, Object[]> mRows;
+
+    /** Incremented on every invalidation. Guarded by this */
+    private long mGeneration;
+
+    /**
+     * @param maxSizeBytes the estimated size in bytes the cached rows may take up
+     */
+    PetRowCache(int maxSizeBytes) {
+        mRows = new LruCache<Long, Object[]>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(Long id, Object[] row) {
+                return ROW_OVERHEAD_BYTES + sizeOf((String) row[1]) + sizeOf((String) row[2]);
+            }
+
+            private int sizeOf(String text) {
+                return text == null ? 0 : 2 * text.length();
+            }
+        };
+    }
+
+    /**
+     * Return true if every column of the projection can be answered from a cached row.
+     */
+    static boolean canServe(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (!COLUMN_LIST.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the current row of a cursor queried with {@link #COLUMNS}.
+     */
+    static Object[] readRow(Cursor cursor) {
+        return new Object[]{
+                cursor.getLong(0),
+                cursor.getString(1),
+                cursor.isNull(2) ? null : cursor.getString(2),
+                cursor.getInt(3),
+                cursor.getInt(4),
+                cursor.getLong(5)};
+    }
+
+    /**
+     * Return a cursor holding the given row, or no rows if it is null, with the given
+     * projection. A null projection returns every cached column.
+     */
+    static Cursor toCursor(Object[] row, String[] projection) {
+        String[] columns = projection == null ? COLUMNS : projection;
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        if (row != null) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = row[COLUMN_LIST.indexOf(columns[i])];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the cached row of the pet with the given id, or null if it isn't cached.
+     */
+    Object[] get(long id) {
+        return mRows.get(id);
+    }
+
+    /**
+     * Return the current generation. Read it before reading a row from the database and pass
+     * it to {@link #put}.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a row read from the database, unless the cache was invalidated since the given
+     * generation was read.
+     */
+    synchronized void put(long id, Object[] row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(id, row);
+        }
+    }
+
+    /**
+     * Drop the cached row of the pet with the given id.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Drop every cached row.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    /**
+     * Return the hit and miss counters and the size of the cache.
+     */
+    Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putInt(PetContract.KEY_CACHE_HITS, mRows.hitCount());
+        stats.putInt(PetContract.KEY_CACHE_MISSES, mRows.missCount());
+        stats.putInt(PetContract.KEY_CACHE_EVICTIONS, mRows.evictionCount());
+        stats.putInt(PetContract.KEY_CACHE_SIZE_BYTES, mRows.size());
+        stats.putInt(PetContract.KEY_CACHE_MAX_SIZE_BYTES, mRows.maxSize());
+        return stats;
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Records the operations of {@link PetProvider} that take longer than a threshold, with the
+ * SQL they ran and its query plan, in a bounded ring buffer.
+ * <p>
+ * Before running its statement, an operation notes it on its own thread with one of the
+ * note methods, which only keep references. When the operation ends, {@link #finish} checks
+ * its duration, and only a slow operation pays for building the SQL text, describing its
+ * arguments and running EXPLAIN QUERY PLAN. The argument values themselves are never kept,
+ * only their shape, so pet names and search text don't end up in the log.
+ */
+class PetSlowQueryLog {
+
+    private static final String LOG_TAG = PetSlowQueryLog.class.getSimpleName();
+
+    /** Threshold used until another one is set, in milliseconds */
+    static final long DEFAULT_THRESHOLD_MILLIS = 50;
+
+    /** Number of slow operations kept, the oldest are dropped first */
+    static final int CAPACITY = 32;
+
+    // Kinds of statement an operation can note
+    private static final int KIND_NONE = 0;
+    private static final int KIND_SQL = 1;
+    private static final int KIND_INSERT = 2;
+    private static final int KIND_UPDATE = 3;
+
+    private final PetDbHelper mDbHelper;
+
+    /** The statement the operation running on the current thread noted */
+    private final ThreadLocal<Statement> mStatement = new ThreadLocal<Statement>() {
+        @Override
+        protected Statement initialValue() {
+            return new Statement();
+        }
+    };
+
+    private volatile long mThresholdNanos = DEFAULT_THRESHOLD_MILLIS * 1000000;
+
+    /** Ring buffer of the slow operations. Guarded by this */
+    private final Bundle[] mEntries = new Bundle[CAPACITY];
+
+    /** Index in {@link #mEntries} the next slow operation is written to. Guarded by this */
+    private int mNext;
+
+    PetSlowQueryLog(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Set the duration, in milliseconds, from which an operation is recorded.
+     */
+    void setThresholdMillis(long thresholdMillis) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException("Invalid slow query threshold " + thresholdMillis);
+        }
+        mThresholdNanos = thresholdMillis * 1000000;
+    }
+
+    /** Note that the current operation runs the given SQL with the given arguments */
+    void noteQuery(String sql, String[] selectionArgs) {
+        mStatement.get().set(KIND_SQL, sql, null, selectionArgs);
+    }
+
+    /** Note that the current operation inserts a pet with the given values */
+    void noteInsert(ContentValues values) {
+        mStatement.get().set(KIND_INSERT, null, values, null);
+    }
+
+    /** Note that the current operation updates the selected pets with the given values */
+    void noteUpdate(ContentValues values, String selection, String[] selectionArgs) {
+        mStatement.get().set(KIND_UPDATE, selection, values, selectionArgs);
+    }
+
+    /**
+     * End the operation running on the current thread, recording it if it took at least the
+     * threshold. Must be called once for every operation, whether it succeeded or not.
+     *
+     * @param operation one of the PetMetrics OP_ constants
+     * @param match     the {@link PetProvider#sUriMatcher} code of the URI
+     * @param rows      rows the operation returned or affected
+     * @param nanos     time the operation took
+     */
+    void finish(int operation, int match, int rows, long nanos) {
+        Statement statement = mStatement.get();
+        try {
+            if (nanos < mThresholdNanos) {
+                return;
+            }
+
+            String sql = statement.getSql();
+            Bundle entry = new Bundle();
+            entry.putLong(PetContract.KEY_SLOW_TIME_MILLIS, System.currentTimeMillis());
+            entry.putString(PetContract.KEY_SLOW_OPERATION,
+                    PetMetrics.getSeriesName(operation, match));
+            entry.putString(PetContract.KEY_SLOW_SQL, sql);
+            entry.putString(PetContract.KEY_SLOW_ARGS_SHAPE, statement.getArgsShape());
+            entry.putInt(PetContract.KEY_SLOW_ROWS, rows);
+            entry.putLong(PetContract.KEY_SLOW_DURATION_MICROS, nanos / 1000);
+            entry.putString(PetContract.KEY_SLOW_QUERY_PLAN, sql == null ? null : explain(sql));
+
+            Log.w(LOG_TAG, entry.getString(PetContract.KEY_SLOW_OPERATION) + " took "
+                    + nanos / 1000000 + " ms: " + sql);
+            synchronized (this) {
+                mEntries[mNext] = entry;
+                mNext = (mNext + 1) % CAPACITY;
+            }
+        } finally {
+            statement.clear();
+        }
+    }
+
+    /**
+     * Return the recorded slow operations, oldest first, in the layout described by
+     * {@link PetContract#METHOD_GET_SLOW_QUERIES}.
+     */
+    Bundle dump() {
+        ArrayList<Bundle> entries = new ArrayList<>(CAPACITY);
+        synchronized (this) {
+            for (int i = 0; i < CAPACITY; i++) {
+                Bundle entry = mEntries[(mNext + i) % CAPACITY];
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+
+        Bundle dump = new Bundle();
+        dump.putLong(PetContract.KEY_SLOW_THRESHOLD_MILLIS, mThresholdNanos / 1000000);
+        dump.putParcelableArrayList(PetContract.KEY_SLOW_QUERIES, entries);
+        return dump;
+    }
+
+    /**
+     * Return the query plan SQLite chooses for the given SQL, one step per line. Plans don't
+     * depend on the argument values, so the statement is explained without them.
+     */
+    private String explain(String sql) {
+        try {
+            Cursor cursor = mDbHelper.getReadableDatabase()
+                    .rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+            try {
+                int detailColumnIndex = cursor.getColumnIndexOrThrow("detail");
+                StringBuilder plan = new StringBuilder();
+                while (cursor.moveToNext()) {
+                    if (plan.length() > 0) {
+                        plan.append('\n');
+                    }
+                    plan.append(cursor.getString(detailColumnIndex));
+                }
+                return plan.toString();
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException | IllegalArgumentException e) {
+            // The statement itself may be what failed, so there may be no plan to show
+            return null;
+        }
+    }
+
+    /**
+     * The statement of one operation. Only references are kept when it is noted, the SQL is
+     * built if the operation turns out to be slow.
+     */
+    private static final class Statement {
+
+        int mKind;
+        String mSqlOrSelection;
+        ContentValues mValues;
+        String[] mArgs;
+
+        void set(int kind, String sqlOrSelection, ContentValues values, String[] args) {
+            mKind = kind;
+            mSqlOrSelection = sqlOrSelection;
+            mValues = values;
+            mArgs = args;
+        }
+
+        void clear() {
+            set(KIND_NONE, null, null, null);
+        }
+
+        String getSql() {
+            switch (mKind) {
+                case KIND_SQL:
+                    return mSqlOrSelection;
+                case KIND_INSERT:
+                    return "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+                            + TextUtils.join(", ", mValues.keySet()) + ") VALUES (...)";
+                case KIND_UPDATE:
+                    return "UPDATE " + PetEntry.TABLE_NAME + " SET "
+                            + TextUtils.join(" = ?, ", mValues.keySet()) + " = ?"
+                            + where(mSqlOrSelection);
+                default:
+                    // Answered without a statement, from the row cache
+                    return null;
+            }
+        }
+
+        /**
+         * Describe the arguments without their values, for example "[integer, text(5), null]".
+         */
+        String getArgsShape() {
+            if (mArgs == null) {
+                return "[]";
+            }
+            StringBuilder shape = new StringBuilder("[");
+            for (int i = 0; i < mArgs.length; i++) {
+                if (i > 0) {
+                    shape.append(", ");
+                }
+                String arg = mArgs[i];
+                if (arg == null) {
+                    shape.append("null");
+                } else if (arg.matches("-?\\d+")) {
+                    shape.append("integer");
+                } else {
+                    shape.append("text(").append(arg.length()).append(')');
+                }
+            }
+            return shape.append(']').toString();
+        }
+
+        private static String where(String selection) {
+            return TextUtils.isEmpty(selection) ? "" : " WHERE " + selection;
+        }
+    }
+}
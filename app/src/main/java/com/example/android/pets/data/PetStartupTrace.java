@@ -0,0 +1,63 @@
+package com.example.android.pets.data;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The cold start trace of the process, from its start to the first pet bound to a row of the
+ * catalog. Each step is recorded the first time it is reached, in milliseconds since the
+ * process started, and logged, so a cold start can be measured with
+ * {@code adb logcat -s PetStartupTrace}. The steps are read back with
+ * {@link PetContract#METHOD_GET_STARTUP_TRACE}.
+ * <p>
+ * Before Android 7.0 the start time of the process isn't known, so the times count from the
+ * first step, the creation of the provider, which is the first code of the app that runs.
+ */
+public final class PetStartupTrace {
+
+    private static final String LOG_TAG = PetStartupTrace.class.getSimpleName();
+
+    /** Start of the process, in {@link SystemClock#elapsedRealtime()} milliseconds, or -1 */
+    private static long sStartMillis = -1;
+
+    /** The steps reached, in order, and their times. Guarded by the class */
+    private static final Map<String, Long> sSteps = new LinkedHashMap<>();
+
+    private PetStartupTrace() {
+    }
+
+    /**
+     * Record that the given step, one of the startup keys of {@link PetContract}, was reached
+     * now, unless it was reached before.
+     */
+    public static synchronized void mark(String step) {
+        if (sSteps.containsKey(step)) {
+            return;
+        }
+        if (sStartMillis < 0) {
+            sStartMillis = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    ? Process.getStartElapsedRealtime()
+                    : SystemClock.elapsedRealtime();
+        }
+        long millis = SystemClock.elapsedRealtime() - sStartMillis;
+        sSteps.put(step, millis);
+        Log.i(LOG_TAG, step + " after " + millis + " ms");
+    }
+
+    /**
+     * Return the steps reached so far, see {@link PetContract#METHOD_GET_STARTUP_TRACE}.
+     */
+    static synchronized Bundle getSteps() {
+        Bundle steps = new Bundle();
+        for (Map.Entry<String, Long> step : sSteps.entrySet()) {
+            steps.putLong(step.getKey(), step.getValue());
+        }
+        return steps;
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled statements for the writes {@link PetProvider} makes most: inserting a pet, and
+ * updating or soft deleting a pet by id. SQLiteDatabase.insert, update and delete build the SQL
+ * and prepare a statement on every call, while these are prepared once and then only bound
+ * and run, with the id and numbers bound as primitives.
+ * <p>
+ * A statement holds its bound values, so each thread gets its own statements rather than
+ * sharing them behind a lock. A shared lock would deadlock with a transaction: the thread in
+ * the transaction holds the database's write connection and waits for the lock, while the
+ * thread holding the lock waits for the connection. Statements belong to the database object
+ * they were compiled on, and are compiled again if the helper opens a new one.
+ */
+class PetStatementCache {
+
+    /** Columns an update by id can set, in the order of the bits of a column mask */
+    private static final String[] COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    /** Soft delete of a pet by id, see {@link PetEntry#COLUMN_PET_DELETED_AT} */
+    static final String SQL_DELETE_BY_ID = "UPDATE " + PetEntry.TABLE_NAME
+            + " SET " + PetEntry.COLUMN_PET_DELETED_AT + "=?"
+            + " WHERE " + PetEntry._ID + "=? AND " + PetProvider.LIVE_SELECTION;
+
+    private final PetDbHelper mDbHelper;
+
+    /** The statements of the current thread */
+    private final ThreadLocal<Statements> mStatements = new ThreadLocal<>();
+
+    /** The statements of every thread, so they can be closed. Guarded by this */
+    private final List<Statements> mAllStatements = new ArrayList<>();
+
+    PetStatementCache(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Return true if every value is for a column the statements can write. Values for any
+     * other column have to go through SQLiteDatabase, which reports them.
+     */
+    static boolean hasOnlyPetColumns(ContentValues values) {
+        return columnMask(values) >= 0;
+    }
+
+    /**
+     * Insert a validated pet, see {@link PetProvider#bindPet}, and return its id.
+     */
+    long insert(ContentValues values) {
+        SQLiteStatement insert = getStatements().mInsert;
+        PetProvider.bindPet(insert, values);
+        return insert.executeInsert();
+    }
+
+    /**
+     * Insert a validated pet given as its column values and return its id. The breed may be
+     * null.
+     */
+    long insert(String name, String breed, int gender, int weight) {
+        SQLiteStatement insert = getStatements().mInsert;
+        insert.clearBindings();
+        insert.bindString(1, name);
+        if (breed == null) {
+            insert.bindNull(2);
+        } else {
+            insert.bindString(2, breed);
+        }
+        insert.bindLong(3, gender);
+        insert.bindLong(4, weight);
+        return insert.executeInsert();
+    }
+
+    /**
+     * Set the given, validated values on the pet with the given id, and increment its version,
+     * and return the number of pets updated. The values must pass {@link #hasOnlyPetColumns}.
+     *
+     * @param expectedVersion only update the pet if it is at this version, or -1 to update it
+     *                        whatever its version
+     */
+    int updateById(long id, ContentValues values, long expectedVersion) {
+        int mask = columnMask(values);
+        if (mask <= 0) {
+            throw new IllegalArgumentException("Cannot update columns " + values.keySet());
+        }
+
+        // The conditional statements follow the plain ones in the array
+        int statementIndex = expectedVersion < 0 ? mask : mask | (1 << COLUMNS.length);
+        Statements statements = getStatements();
+        SQLiteStatement update = statements.mUpdateById[statementIndex];
+        if (update == null) {
+            update = statements.mDb.compileStatement(
+                    buildUpdateSql(mask, expectedVersion >= 0));
+            statements.mUpdateById[statementIndex] = update;
+        }
+
+        update.clearBindings();
+        int index = 1;
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if ((mask & (1 << i)) == 0) {
+                continue;
+            }
+            if (i == 0 || i == 1) {
+                String text = values.getAsString(COLUMNS[i]);
+                if (text == null) {
+                    update.bindNull(index);
+                } else {
+                    update.bindString(index, text);
+                }
+            } else {
+                Integer number = values.getAsInteger(COLUMNS[i]);
+                if (number == null) {
+                    update.bindNull(index);
+                } else {
+                    update.bindLong(index, number);
+                }
+            }
+            index++;
+        }
+        update.bindLong(index, id);
+        if (expectedVersion >= 0) {
+            update.bindLong(index + 1, expectedVersion);
+        }
+        return update.executeUpdateDelete();
+    }
+
+    /**
+     * Soft delete the pet with the given id, if it isn't deleted yet, and return the number of
+     * pets deleted.
+     */
+    int deleteById(long id, long deletedAt) {
+        SQLiteStatement delete = getStatements().mDeleteById;
+        delete.bindLong(1, deletedAt);
+        delete.bindLong(2, id);
+        return delete.executeUpdateDelete();
+    }
+
+    /**
+     * Close the statements of every thread.
+     */
+    synchronized void close() {
+        for (Statements statements : mAllStatements) {
+            statements.close();
+        }
+        mAllStatements.clear();
+    }
+
+    /**
+     * Return the statements of the current thread, compiling them if the thread has none yet
+     * or they were compiled on a database object the helper no longer returns.
+     */
+    private Statements getStatements() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        Statements statements = mStatements.get();
+        if (statements != null && statements.mDb == db) {
+            return statements;
+        }
+
+        Statements newStatements = new Statements(db);
+        synchronized (this) {
+            if (statements != null) {
+                statements.close();
+                mAllStatements.remove(statements);
+            }
+            mAllStatements.add(newStatements);
+        }
+        mStatements.set(newStatements);
+        return newStatements;
+    }
+
+    /**
+     * Return a mask with bit i set if the values hold {@link #COLUMNS}[i], or -1 if they hold
+     * any other column.
+     */
+    private static int columnMask(ContentValues values) {
+        int mask = 0;
+        for (String key : values.keySet()) {
+            int bit = -1;
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (COLUMNS[i].equals(key)) {
+                    bit = i;
+                    break;
+                }
+            }
+            if (bit < 0) {
+                return -1;
+            }
+            mask |= 1 << bit;
+        }
+        return mask;
+    }
+
+    private static String buildUpdateSql(int mask, boolean conditional) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(PetEntry.TABLE_NAME)
+                .append(" SET ");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                sql.append(COLUMNS[i]).append("=?, ");
+            }
+        }
+        sql.append(PetEntry.COLUMN_PET_VERSION).append('=')
+                .append(PetEntry.COLUMN_PET_VERSION).append("+1");
+        sql.append(" WHERE ").append(PetEntry._ID).append("=? AND ")
+                .append(PetProvider.LIVE_SELECTION);
+        if (conditional) {
+            sql.append(" AND ").append(PetEntry.COLUMN_PET_VERSION).append("=?");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * The statements of one thread, compiled on one database object.
+     */
+    private static final class Statements {
+
+        final SQLiteDatabase mDb;
+        final SQLiteStatement mInsert;
+        final SQLiteStatement mDeleteById;
+
+        /**
+         * Update statements indexed by column mask, then the same conditional on the version,
+         * compiled when first used
+         */
+        final SQLiteStatement[] mUpdateById = new SQLiteStatement[2 << COLUMNS.length];
+
+        Statements(SQLiteDatabase db) {
+            mDb = db;
+            mInsert = db.compileStatement(PetProvider.SQL_INSERT_PET);
+            mDeleteById = db.compileStatement(SQL_DELETE_BY_ID);
+        }
+
+        void close() {
+            mInsert.close();
+            mDeleteById.close();
+            for (SQLiteStatement update : mUpdateById) {
+                if (update != null) {
+                    update.close();
+                }
+            }
+        }
+    }
+}
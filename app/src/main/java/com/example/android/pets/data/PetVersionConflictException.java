@@ -0,0 +1,33 @@
+package com.example.android.pets.data;
+
+/**
+ * Thrown by an update of a pet at a versioned URI, see
+ * {@link PetContract.PetEntry#buildVersionedUri}, when another write updated the pet since the
+ * version the client read.
+ * <p>
+ * It is an {@link IllegalStateException}, so a caller in another process, which only gets
+ * the exception types a parcel can carry, still gets the state error. Callers in the app
+ * catch this type to tell a conflict from any other state error of the provider.
+ */
+public class PetVersionConflictException extends IllegalStateException {
+
+    private final long mId;
+
+    private final long mExpectedVersion;
+
+    public PetVersionConflictException(long id, long expectedVersion) {
+        super("Pet " + id + " changed since version " + expectedVersion);
+        mId = id;
+        mExpectedVersion = expectedVersion;
+    }
+
+    /** ID of the pet that changed */
+    public long getId() {
+        return mId;
+    }
+
+    /** Version the update expected the pet to be at */
+    public long getExpectedVersion() {
+        return mExpectedVersion;
+    }
+}
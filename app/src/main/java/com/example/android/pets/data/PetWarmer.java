@@ -0,0 +1,97 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Gets the database ready on a background thread as soon as the provider is created, rather
+ * than on the first query, which the catalog is waiting on to show anything.
+ * <p>
+ * First the database is opened, which creates or migrates it and configures the connection,
+ * see {@link PetDbHelper}. Then the first page of the list of pets is read once, with
+ * {@link PetEntry#LIST_PROJECTION}. That brings the pages of the table and index the list
+ * reads into the page cache of the file system, which every connection reads them from. The
+ * list's own first query may still run on another connection of the pool, and prepare its
+ * statement there. A query that arrives while the database is still opening waits for it, as
+ * it would have opened it itself.
+ * <p>
+ * The thread runs at background priority, like the provider's other background work, so it
+ * never competes with the main thread drawing the catalog.
+ */
+final class PetWarmer implements Runnable {
+
+    private static final String LOG_TAG = PetWarmer.class.getSimpleName();
+
+    /** Number of pets read to prime the list, at least the first page of the catalog */
+    static final int PRIME_PAGE_SIZE = 50;
+
+    private final PetDbHelper mDbHelper;
+
+    PetWarmer(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Start warming up on a thread of its own.
+     */
+    void start() {
+        new Thread(this, LOG_TAG).start();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            beginSection("open");
+            SQLiteDatabase db;
+            try {
+                db = mDbHelper.getWritableDatabase();
+            } finally {
+                endSection();
+            }
+            PetStartupTrace.mark(PetContract.KEY_STARTUP_DATABASE_OPEN);
+
+            beginSection("prime");
+            try {
+                PetQueryPlanner plan = PetQueryPlanner.plan(
+                        PetEntry.buildPageUri(PRIME_PAGE_SIZE), PetEntry.LIST_PROJECTION,
+                        null, null, null);
+                Cursor cursor = db.rawQuery(plan.sql, plan.args);
+                try {
+                    //Counting the rows reads all of them
+                    cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                endSection();
+            }
+            PetStartupTrace.mark(PetContract.KEY_STARTUP_LIST_PRIMED);
+        } catch (SQLException e) {
+            //The first query opens the database again and reports the error to its caller
+            Log.w(LOG_TAG, "Failed to warm up the database", e);
+        }
+    }
+
+    /**
+     * Begin a section of a systrace, where the platform supports it.
+     */
+    private static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(LOG_TAG + "." + name);
+        }
+    }
+
+    private static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
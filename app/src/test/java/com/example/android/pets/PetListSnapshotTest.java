@@ -0,0 +1,127 @@
+package com.example.android.pets;
+
+import android.database.MatrixCursor;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Binds the pets of a snapshot the way the list binds its rows, and checks that once the views
+ * exist, binding a row doesn't allocate.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetListSnapshotTest {
+
+    /** Number of pets bound, more than the bytes a single allocation could take */
+    private static final int PET_COUNT = 2000;
+
+    /** Number of rows the list keeps views for and rebinds while it scrolls */
+    private static final int ROW_COUNT = 10;
+
+    private PetListSnapshot mPets;
+
+    @Before
+    public void readPets() {
+        MatrixCursor cursor = new MatrixCursor(PetEntry.LIST_PROJECTION);
+        for (int i = 0; i < PET_COUNT; i++) {
+            cursor.newRow()
+                    .add(PetEntry._ID, i + 1)
+                    .add(PetEntry.COLUMN_PET_NAME, "Pet " + i)
+                    .add(PetEntry.COLUMN_PET_BREED, i % 3 == 0 ? null : "Breed " + i)
+                    .add(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN)
+                    .add(PetEntry.COLUMN_PET_WEIGHT, i)
+                    .add(PetEntry.COLUMN_PET_VERSION, 0);
+        }
+        mPets = PetListSnapshot.fromCursor(cursor);
+        cursor.close();
+    }
+
+    @Test
+    public void fromCursor_copiesEveryPet() {
+        assertEquals(PET_COUNT, mPets.size());
+        assertEquals(1, mPets.getId(0));
+        assertEquals("Pet 1", mPets.getName(1));
+        assertNull(mPets.getBreed(0));
+        assertEquals("Breed 1", mPets.getBreed(1));
+        assertEquals(PET_COUNT - 1, mPets.getWeight(PET_COUNT - 1));
+    }
+
+    @Test
+    public void slice_keepsThePetsOfTheRange() {
+        PetListSnapshot slice = mPets.slice(2, 5);
+        assertEquals(3, slice.size());
+        assertEquals(3, slice.getId(0));
+        assertEquals("Pet 2", slice.getName(0));
+        assertEquals("Breed 2", slice.getBreed(0));
+        assertNull(slice.getBreed(1));
+        assertEquals("Pet 4", slice.getName(2));
+        assertEquals(4, slice.getWeight(2));
+
+        PetListSnapshot end = mPets.slice(PET_COUNT - 1, PET_COUNT);
+        assertEquals("Pet " + (PET_COUNT - 1), end.getName(0));
+        assertEquals(0, mPets.slice(PET_COUNT, PET_COUNT).size());
+    }
+
+    @Test
+    public void bind_showsNameAndBreed() {
+        TextView name = new TextView(RuntimeEnvironment.application);
+        TextView breed = new TextView(RuntimeEnvironment.application);
+
+        mPets.bindName(1, name);
+        assertTrue(mPets.bindBreed(1, breed));
+        assertEquals("Pet 1", name.getText().toString());
+        assertEquals("Breed 1", breed.getText().toString());
+
+        // A pet without a breed leaves the view to the caller
+        assertFalse(mPets.bindBreed(0, breed));
+        assertEquals("Breed 1", breed.getText().toString());
+    }
+
+    @Test
+    public void bind_doesNotAllocatePerRow() {
+        TextView[] names = new TextView[ROW_COUNT];
+        TextView[] breeds = new TextView[ROW_COUNT];
+        for (int i = 0; i < ROW_COUNT; i++) {
+            names[i] = new TextView(RuntimeEnvironment.application);
+            breeds[i] = new TextView(RuntimeEnvironment.application);
+        }
+
+        // The first pass lets the views and the runtime set up whatever they keep
+        bindAll(names, breeds);
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        bindAll(names, breeds);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // Any allocation per row would take at least a byte per row
+        assertTrue("Binding " + PET_COUNT + " rows allocated " + allocated + " bytes",
+                allocated < PET_COUNT);
+    }
+
+    /**
+     * Bind every pet, in order, to the views of the rows, the way a scrolling list rebinds them.
+     */
+    private void bindAll(TextView[] names, TextView[] breeds) {
+        for (int i = 0; i < mPets.size(); i++) {
+            int row = i % ROW_COUNT;
+            mPets.bindName(i, names[row]);
+            mPets.bindBreed(i, breeds[row]);
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQueryBuilder;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ContentProviderController;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Microbenchmarks of the pets data layer on a plain JVM. For every table size it creates a new
+ * database with {@link PetDbHelper} and drives {@link PetProvider} through its content URIs the
+ * way the app does: single and batch inserts, PET_ID lookups, catalog scans, pages and
+ * sections, updates and soft deletes, then runs {@link PetCompactor} over the deleted pets.
+ * The rows per second of insert_loop and insert_bulk compare inserting the same pets one
+ * insert() at a time, as before {@link PetProvider#bulkInsert} was overridden, with one
+ * bulkInsert() call.
+ * The statements are the provider's own, planned by {@link PetQueryPlanner} and compiled by
+ * {@link PetStatementCache}. The results are written as JSON, with the throughput and latency
+ * percentiles of every operation.
+ * <p>
+ * SQLite runs under Robolectric, which hands every statement to a thread of its own, so the
+ * times include a thread switch per statement a device doesn't pay. They are for comparing one
+ * change of the data layer with another, not for predicting times on a device.
+ * <p>
+ * The benchmark only runs when the table sizes are given, as a comma separated list in the
+ * {@link #PROPERTY_SIZES} system property, and also writes the JSON to the file in
+ * {@link #PROPERTY_OUTPUT} if set. With Gradle:
+ * <pre>
+ * ./gradlew :app:testDebugUnitTest --tests '*PetDataBenchmark' \
+ *         -PbenchmarkSizes=1000,100000,1000000 -PbenchmarkOutput=build/benchmark.json
+ * </pre>
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetDataBenchmark {
+
+    /** System property with the table sizes to run at */
+    static final String PROPERTY_SIZES = "pets.benchmark.sizes";
+
+    /** System property with the file to write the results to */
+    static final String PROPERTY_OUTPUT = "pets.benchmark.output";
+
+    private static final String DATABASE_NAME = "shelter.db";
+
+    /** Pets per bulkInsert() call when the table is filled */
+    private static final int BATCH_SIZE = 1000;
+
+    /** Number of batches inserted one pet at a time, to compare with bulkInsert() */
+    private static final int LOOP_BATCHES = 5;
+
+    /** Number of timed operations for the operations that touch one row */
+    private static final int ROW_OPS = 2000;
+
+    /** Number of timed PET_ID lookups */
+    private static final int LOOKUP_OPS = 10000;
+
+    /** Number of timed full scans of the catalog projection */
+    private static final int SCAN_OPS = 5;
+
+    /** Page size the catalog reads with */
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] NAMES = {"Toto", "Bella", "Max", "Luna", "Charlie", "Lucy",
+            "Cooper", "Daisy", "Milo", "Bailey"};
+    private static final String[] BREEDS = {"Terrier", "Tabby", "Labrador", "Beagle", null,
+            "Siamese", "Poodle"};
+
+    private final Random mRandom = new Random(42);
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    @Test
+    public void run() throws IOException {
+        String sizesProperty = System.getProperty(PROPERTY_SIZES);
+        Assume.assumeTrue("Set " + PROPERTY_SIZES + " to run the benchmark",
+                sizesProperty != null && !sizesProperty.isEmpty());
+
+        mContext = RuntimeEnvironment.application;
+        mResolver = mContext.getContentResolver();
+
+        List<Result> results = new ArrayList<>();
+        for (String size : sizesProperty.split(",")) {
+            results.addAll(run(Integer.parseInt(size.trim())));
+        }
+
+        String json = toJson(results);
+        System.out.println(json);
+        String output = System.getProperty(PROPERTY_OUTPUT);
+        if (output != null && !output.isEmpty()) {
+            try (Writer writer = new FileWriter(output)) {
+                writer.write(json);
+            }
+        }
+    }
+
+    /**
+     * Run every benchmark against a new database of the given size.
+     */
+    private List<Result> run(int size) {
+        mContext.deleteDatabase(DATABASE_NAME);
+        ContentProviderController<PetProvider> provider =
+                Robolectric.buildContentProvider(PetProvider.class)
+                        .create(PetContract.CONTENT_AUTHORITY);
+        List<Result> results = new ArrayList<>();
+        try {
+            results.add(insertBatch(size));
+            results.add(insertLoop(size));
+            results.add(insertBulk(size));
+            results.add(insertSingle(size));
+            results.add(queryById(size));
+            results.add(scanCatalog(size));
+            results.add(pageCatalog(size));
+            results.add(sectionIndex(size));
+            results.add(updateById(size));
+            results.add(deleteById(size));
+            results.add(compact(size));
+        } finally {
+            provider.shutdown();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+        return results;
+    }
+
+    /**
+     * Fill the table with the given number of pets through bulkInsert() calls of
+     * {@link #BATCH_SIZE} pets. One op is one call, and the throughput is in rows.
+     */
+    private Result insertBatch(int size) {
+        Result result = new Result("insert_batch", size, (size + BATCH_SIZE - 1) / BATCH_SIZE);
+        for (int done = 0; done < size; done += BATCH_SIZE) {
+            ContentValues[] pets = randomPets(Math.min(BATCH_SIZE, size - done));
+            long start = System.nanoTime();
+            int rows = mResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+            result.record(System.nanoTime() - start, rows);
+        }
+        return result;
+    }
+
+    /**
+     * Insert {@link #LOOP_BATCHES} batches of {@link #BATCH_SIZE} pets with one insert() call
+     * per pet, the way ContentProvider.bulkInsert() does unless it is overridden, so every pet
+     * is its own transaction and notification. One op is one batch, and the throughput is in
+     * rows, to compare with {@link #insertBulk}.
+     */
+    private Result insertLoop(int size) {
+        Result result = new Result("insert_loop", size, LOOP_BATCHES);
+        for (int batch = 0; batch < LOOP_BATCHES; batch++) {
+            ContentValues[] pets = randomPets(BATCH_SIZE);
+            long start = System.nanoTime();
+            int rows = 0;
+            for (ContentValues pet : pets) {
+                if (mResolver.insert(PetEntry.CONTENT_URI, pet) != null) {
+                    rows++;
+                }
+            }
+            result.record(System.nanoTime() - start, rows);
+        }
+        return result;
+    }
+
+    /**
+     * Insert the same number of batches as {@link #insertLoop}, at the same table size, with
+     * one bulkInsert() call per batch. One op is one batch, and the throughput is in rows.
+     */
+    private Result insertBulk(int size) {
+        Result result = new Result("insert_bulk", size, LOOP_BATCHES);
+        for (int batch = 0; batch < LOOP_BATCHES; batch++) {
+            ContentValues[] pets = randomPets(BATCH_SIZE);
+            long start = System.nanoTime();
+            int rows = mResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+            result.record(System.nanoTime() - start, rows);
+        }
+        return result;
+    }
+
+    /**
+     * Insert pets one at a time through insert(), like the editor saving a new pet.
+     */
+    private Result insertSingle(int size) {
+        Result result = new Result("insert_single", size, ROW_OPS);
+        for (int i = 0; i < ROW_OPS; i++) {
+            ContentValues pet = randomPet();
+            long start = System.nanoTime();
+            Uri uri = mResolver.insert(PetEntry.CONTENT_URI, pet);
+            result.record(System.nanoTime() - start, uri == null ? 0 : 1);
+        }
+        return result;
+    }
+
+    /**
+     * Look up random pets by their PET_ID URI with the editor's projection.
+     */
+    private Result queryById(int size) {
+        Result result = new Result("query_pet_id", size, LOOKUP_OPS);
+        for (int i = 0; i < LOOKUP_OPS; i++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, randomId(size));
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(uri, PetRowCache.COLUMNS, null, null, null);
+            int rows = readRows(cursor);
+            result.record(System.nanoTime() - start, rows);
+        }
+        return result;
+    }
+
+    /**
+     * Read the whole table with the catalog's projection from the unpaged PETS URI. The
+     * throughput is in rows.
+     */
+    private Result scanCatalog(int size) {
+        Result result = new Result("scan_catalog", size, SCAN_OPS);
+        for (int i = 0; i < SCAN_OPS; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, PetEntry.LIST_PROJECTION,
+                    null, null, null);
+            int rows = readRows(cursor);
+            result.record(System.nanoTime() - start, rows);
+        }
+        return result;
+    }
+
+    /**
+     * Read the page of the catalog ordered by name that follows a random pet, as the list
+     * does while it scrolls.
+     */
+    private Result pageCatalog(int size) {
+        Result result = new Result("page_catalog", size, ROW_OPS);
+        for (int i = 0; i < ROW_OPS; i++) {
+            Uri uri = pageAfter(randomId(size));
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(uri, PetEntry.LIST_PROJECTION, null, null, null);
+            int rows = readRows(cursor);
+            result.record(System.nanoTime() - start, rows);
+        }
+        return result;
+    }
+
+    /**
+     * Return the URI of the page of the catalog ordered by name that follows the given pet.
+     */
+    private Uri pageAfter(long id) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                PetEntry.LIST_PROJECTION, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return new PetQueryBuilder()
+                    .sortBy(PetEntry.COLUMN_PET_NAME)
+                    .pageSize(PAGE_SIZE)
+                    .after(id,
+                            cursor.getString(cursor.getColumnIndexOrThrow(
+                                    PetEntry.COLUMN_PET_NAME)),
+                            cursor.getInt(cursor.getColumnIndexOrThrow(
+                                    PetEntry.COLUMN_PET_WEIGHT)))
+                    .build();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read the alphabetical sections of the pets, as the list ordered by name does. The
+     * throughput is in sections.
+     */
+    private Result sectionIndex(int size) {
+        Result result = new Result("section_index", size, SCAN_OPS);
+        Uri uri = new PetQueryBuilder().buildSectionsUri();
+        for (int i = 0; i < SCAN_OPS; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(uri, null, null, null, null);
+            int rows = readRows(cursor);
+            result.record(System.nanoTime() - start, rows);
+        }
+        return result;
+    }
+
+    /**
+     * Update random pets by their PET_ID URI, like the editor saving a changed pet.
+     */
+    private Result updateById(int size) {
+        Result result = new Result("update_pet_id", size, ROW_OPS);
+        for (int i = 0; i < ROW_OPS; i++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, randomId(size));
+            ContentValues pet = randomPet();
+            long start = System.nanoTime();
+            int rows = mResolver.update(uri, pet, null, null);
+            result.record(System.nanoTime() - start, rows);
+        }
+        return result;
+    }
+
+    /**
+     * Soft delete distinct pets by their PET_ID URI, like the editor deleting a pet.
+     */
+    private Result deleteById(int size) {
+        int ops = Math.min(ROW_OPS, size);
+        Result result = new Result("delete_pet_id", size, ops);
+        // Step through the ids with a stride, so every op deletes a pet that still exists
+        int stride = Math.max(1, size / ops);
+        for (int i = 0; i < ops; i++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + (long) i * stride);
+            long start = System.nanoTime();
+            int rows = mResolver.delete(uri, null, null);
+            result.record(System.nanoTime() - start, rows);
+        }
+        return result;
+    }
+
+    /**
+     * Remove the soft deleted pets for good with {@link PetCompactor}, one time boxed run at a
+     * time. One op is one run, and the throughput is in rows.
+     */
+    private Result compact(int size) {
+        PetDbHelper dbHelper = new PetDbHelper(mContext);
+        PetCompactor compactor = new PetCompactor(dbHelper);
+        try {
+            long deleted = countDeleted(dbHelper);
+            // Every run removes at least one batch
+            Result result = new Result("compact_run", size,
+                    (int) (deleted / PetCompactor.BATCH_SIZE) + 1);
+            boolean done = false;
+            while (!done) {
+                long start = System.nanoTime();
+                done = compactor.compact();
+                long nanos = System.nanoTime() - start;
+                long left = countDeleted(dbHelper);
+                result.record(nanos, (int) (deleted - left));
+                deleted = left;
+            }
+            return result;
+        } finally {
+            compactor.shutdown();
+            dbHelper.close();
+        }
+    }
+
+    private static long countDeleted(PetDbHelper dbHelper) {
+        return DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(),
+                PetEntry.TABLE_NAME, PetEntry.COLUMN_PET_DELETED_AT + " IS NOT NULL");
+    }
+
+    /**
+     * Read every column of every row of the cursor, then close it. Return the number of rows.
+     */
+    private static int readRows(Cursor cursor) {
+        int rows = 0;
+        try {
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    cursor.getString(i);
+                }
+                rows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Return the id of a random pet of the ones the table was filled with.
+     */
+    private long randomId(int size) {
+        return 1 + mRandom.nextInt(size);
+    }
+
+    /**
+     * Return the values of the given number of random valid pets.
+     */
+    private ContentValues[] randomPets(int count) {
+        ContentValues[] pets = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            pets[i] = randomPet();
+        }
+        return pets;
+    }
+
+    /**
+     * Return the values of a random valid pet.
+     */
+    private ContentValues randomPet() {
+        ContentValues pet = new ContentValues(4);
+        pet.put(PetEntry.COLUMN_PET_NAME,
+                NAMES[mRandom.nextInt(NAMES.length)] + mRandom.nextInt(10000));
+        pet.put(PetEntry.COLUMN_PET_BREED, BREEDS[mRandom.nextInt(BREEDS.length)]);
+        pet.put(PetEntry.COLUMN_PET_GENDER, mRandom.nextInt(3));
+        pet.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(60));
+        return pet;
+    }
+
+    private static String toJson(List<Result> results) {
+        StringBuilder json = new StringBuilder("{\"schema_version\": ")
+                .append(PetDbHelper.DATABASE_VERSION)
+                .append(", \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            json.append(i == 0 ? "\n  " : ",\n  ");
+            results.get(i).appendJson(json);
+        }
+        return json.append("\n]}").toString();
+    }
+
+    /**
+     * The latencies of the ops of one benchmark at one table size.
+     */
+    private static final class Result {
+
+        final String mName;
+        final int mTableSize;
+        long[] mLatencies;
+        int mOps;
+        long mRows;
+        long mTotalNanos;
+
+        Result(String name, int tableSize, int ops) {
+            mName = name;
+            mTableSize = tableSize;
+            mLatencies = new long[Math.max(1, ops)];
+        }
+
+        void record(long nanos, int rows) {
+            if (mOps == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mOps * 2);
+            }
+            mLatencies[mOps++] = nanos;
+            mRows += rows;
+            mTotalNanos += nanos;
+        }
+
+        void appendJson(StringBuilder json) {
+            long[] sorted = Arrays.copyOf(mLatencies, mOps);
+            Arrays.sort(sorted);
+            double seconds = mTotalNanos / 1e9;
+            json.append(String.format(Locale.US, "{\"name\": \"%s\", \"table_rows\": %d, "
+                            + "\"ops\": %d, \"rows\": %d, \"ops_per_sec\": %.1f, "
+                            + "\"rows_per_sec\": %.1f, \"latency_us\": {\"p50\": %.1f, "
+                            + "\"p90\": %.1f, \"p99\": %.1f, \"max\": %.1f}}",
+                    mName, mTableSize, mOps, mRows,
+                    seconds > 0 ? mOps / seconds : 0, seconds > 0 ? mRows / seconds : 0,
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                    sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e3));
+        }
+
+        private static double percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e3;
+        }
+    }
+}
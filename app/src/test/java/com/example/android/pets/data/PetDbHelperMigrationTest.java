@@ -0,0 +1,230 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades a database holding pets from every older version to the current one, and checks
+ * that it ends up with the schema of a new database and that the pets, their full-text rows and
+ * the statistics survive the upgrade.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+public class PetDbHelperMigrationTest {
+
+    private static final String DATABASE_NAME = "shelter.db";
+
+    /** Pets in the database before the upgrade, as name, breed, gender and weight */
+    private static final Object[][] PETS = {
+            {"Rex", "Labrador", PetEntry.GENDER_MALE, 30},
+            {"Bella", null, PetEntry.GENDER_FEMALE, 12},
+            {"Toto", "Terrier", PetEntry.GENDER_MALE, 7},
+            {"Mittens", "Tabby", PetEntry.GENDER_UNKNOWN, 4}};
+
+    /** First version with soft delete, where Toto is deleted before the upgrade */
+    private static final int SOFT_DELETE_VERSION = 6;
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "from version {0}")
+    public static Collection<Object[]> startVersions() {
+        List<Object[]> versions = new ArrayList<>();
+        for (int version = 1; version < PetDbHelper.DATABASE_VERSION; version++) {
+            versions.add(new Object[]{version});
+        }
+        return versions;
+    }
+
+    private final int mStartVersion;
+
+    private Context mContext;
+
+    private PetDbHelper mDbHelper;
+
+    public PetDbHelperMigrationTest(int startVersion) {
+        mStartVersion = startVersion;
+    }
+
+    @Before
+    public void createOldDatabase() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+
+        // Build the database the way the release at the start version built it
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(DATABASE_NAME), null);
+        try {
+            PetDbHelper.createVersion1(db);
+            PetDbHelper.migrate(db, 1, mStartVersion);
+            db.setVersion(mStartVersion);
+            for (Object[] pet : PETS) {
+                db.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " ("
+                        + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+                        + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT
+                        + ") VALUES (?, ?, ?, ?)", pet);
+            }
+            if (mStartVersion >= SOFT_DELETE_VERSION) {
+                db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET "
+                        + PetEntry.COLUMN_PET_DELETED_AT + " = 1 WHERE "
+                        + PetEntry.COLUMN_PET_NAME + " = 'Toto'");
+            }
+        } finally {
+            db.close();
+        }
+
+        mDbHelper = new PetDbHelper(mContext);
+    }
+
+    @After
+    public void deleteDatabase() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void upgrade_endsAtCurrentVersionWithNewSchema() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertEquals(PetDbHelper.DATABASE_VERSION, db.getVersion());
+
+        SQLiteDatabase newDb = SQLiteDatabase.create(null);
+        try {
+            mDbHelper.onCreate(newDb);
+            assertEquals(schema(newDb), schema(db));
+        } finally {
+            newDb.close();
+        }
+
+        List<String> indexes = query(db, "SELECT name FROM sqlite_master WHERE type = 'index'"
+                + " AND tbl_name = '" + PetEntry.TABLE_NAME + "' ORDER BY name");
+        assertEquals(Arrays.asList(
+                PetEntry.INDEX_BREED_NOCASE,
+                PetEntry.INDEX_DELETED_AT,
+                PetEntry.INDEX_DELETED_AT_NAME,
+                PetEntry.INDEX_DELETED_AT_WEIGHT,
+                PetEntry.INDEX_GENDER_WEIGHT), indexes);
+    }
+
+    @Test
+    public void upgrade_keepsPets() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        List<String> pets = query(db, "SELECT " + PetEntry.COLUMN_PET_NAME + ", "
+                + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_VERSION
+                + " FROM " + PetEntry.TABLE_NAME + " ORDER BY " + PetEntry._ID);
+        List<String> expected = new ArrayList<>();
+        for (Object[] pet : PETS) {
+            expected.add(pet[0] + "|" + pet[1] + "|" + pet[2] + "|" + pet[3] + "|0");
+        }
+        assertEquals(expected, pets);
+    }
+
+    @Test
+    public void upgrade_indexesEveryPetForSearch() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertFullTextMatchesPets(db);
+
+        List<String> terriers = query(db, "SELECT docid FROM " + PetEntry.FTS_TABLE_NAME
+                + " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH 'terrier'");
+        assertEquals(query(db, "SELECT " + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry.COLUMN_PET_NAME + " = 'Toto'"), terriers);
+
+        // The triggers keep indexing the pets added after the upgrade
+        insertPet(db, "Luna", "Husky", PetEntry.GENDER_FEMALE, 20);
+        assertFullTextMatchesPets(db);
+    }
+
+    @Test
+    public void upgrade_keepsStatisticsOfLivePets() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertStatisticsMatchPets(db);
+
+        // The triggers keep the statistics up to date after the upgrade
+        insertPet(db, "Luna", "Husky", PetEntry.GENDER_FEMALE, 20);
+        db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_DELETED_AT
+                + " = 2 WHERE " + PetEntry.COLUMN_PET_NAME + " = 'Rex'");
+        assertStatisticsMatchPets(db);
+    }
+
+    private static void insertPet(SQLiteDatabase db, String name, String breed, int gender,
+                                  int weight) {
+        db.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_NAME + ", "
+                + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)",
+                new Object[]{name, breed, gender, weight});
+    }
+
+    private static void assertFullTextMatchesPets(SQLiteDatabase db) {
+        assertEquals(
+                query(db, "SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", "
+                        + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME
+                        + " ORDER BY " + PetEntry._ID),
+                query(db, "SELECT docid, " + PetEntry.COLUMN_PET_NAME + ", "
+                        + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.FTS_TABLE_NAME
+                        + " ORDER BY docid"));
+    }
+
+    private static void assertStatisticsMatchPets(SQLiteDatabase db) {
+        List<String> stats = query(db, "SELECT " + StatsEntry.COLUMN_GENDER + ", "
+                + StatsEntry.COLUMN_PET_COUNT + ", " + StatsEntry.COLUMN_WEIGHT_SUM + ", "
+                + StatsEntry.COLUMN_MIN_WEIGHT + ", " + StatsEntry.COLUMN_MAX_WEIGHT
+                + " FROM " + StatsEntry.TABLE_NAME + " ORDER BY " + StatsEntry.COLUMN_GENDER);
+        String live = " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_GENDER
+                + " = g AND " + PetEntry.COLUMN_PET_DELETED_AT + " IS NULL";
+        List<String> expected = query(db, "SELECT g, (SELECT COUNT(*)" + live + "),"
+                + " (SELECT IFNULL(SUM(" + PetEntry.COLUMN_PET_WEIGHT + "), 0)" + live + "),"
+                + " (SELECT MIN(" + PetEntry.COLUMN_PET_WEIGHT + ")" + live + "),"
+                + " (SELECT MAX(" + PetEntry.COLUMN_PET_WEIGHT + ")" + live + ")"
+                + " FROM (SELECT " + PetEntry.GENDER_UNKNOWN + " AS g UNION SELECT "
+                + PetEntry.GENDER_MALE + " UNION SELECT " + PetEntry.GENDER_FEMALE + ")"
+                + " ORDER BY g");
+        assertEquals(expected, stats);
+        assertTrue(stats.size() == 3);
+    }
+
+    /**
+     * Return the tables, indexes and triggers of the database, without the framework's own.
+     */
+    private static List<String> schema(SQLiteDatabase db) {
+        return query(db, "SELECT type, name, tbl_name, sql FROM sqlite_master"
+                + " WHERE name != 'android_metadata' ORDER BY type, name");
+    }
+
+    /**
+     * Return every row of the query, each as its columns joined by '|'.
+     */
+    private static List<String> query(SQLiteDatabase db, String sql) {
+        List<String> rows = new ArrayList<>();
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (i > 0) {
+                        row.append('|');
+                    }
+                    row.append(cursor.getString(i));
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ContentProviderController;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives {@link PetProvider} through a content resolver, the way the app does.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetProviderTest {
+
+    private ContentProviderController<PetProvider> mProvider;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void createProvider() {
+        RuntimeEnvironment.application.deleteDatabase("shelter.db");
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @After
+    public void shutdownProvider() {
+        mProvider.shutdown();
+        RuntimeEnvironment.application.deleteDatabase("shelter.db");
+    }
+
+    @Test
+    public void bulkInsert_rejectsUnknownColumnsWithoutInserting() {
+        ContentValues withId = pet("Toto");
+        withId.put(PetEntry._ID, 42);
+        ContentValues misspelled = pet("Bella");
+        misspelled.put("wieght", 3);
+
+        for (ContentValues bad : new ContentValues[]{withId, misspelled}) {
+            try {
+                mResolver.bulkInsert(PetEntry.CONTENT_URI, new ContentValues[]{pet("Max"), bad});
+                fail("Inserted " + bad);
+            } catch (IllegalArgumentException expected) {
+                // The whole batch is rejected
+            }
+        }
+        assertEquals(0, countPets());
+    }
+
+    @Test
+    public void applyBatch_keepsTheCauseOfARejectedOperation() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(PetEntry.CONTENT_URI)
+                .withValues(pet("Max")).build());
+        operations.add(ContentProviderOperation.newInsert(PetEntry.CONTENT_URI)
+                .withValues(pet(null)).build());
+        try {
+            mProvider.get().applyBatch(operations);
+            fail("Applied a pet without a name");
+        } catch (OperationApplicationException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(0, countPets());
+    }
+
+    @Test
+    public void versionedUpdate_throwsAConflictOnlyForAChangedPet() {
+        Uri uri = mResolver.insert(PetEntry.CONTENT_URI, pet("Max"));
+        assertEquals(1, mResolver.update(PetEntry.buildVersionedUri(uri, 0), pet("Luna"), null,
+                null));
+        try {
+            mResolver.update(PetEntry.buildVersionedUri(uri, 0), pet("Toto"), null, null);
+            fail("Updated a pet that changed since version 0");
+        } catch (PetVersionConflictException expected) {
+            assertEquals(0, expected.getExpectedVersion());
+        }
+
+        // Other state errors of the provider are not conflicts
+        try {
+            mResolver.getType(Uri.parse("content://" + PetContract.CONTENT_AUTHORITY + "/dogs"));
+            fail("Typed an unknown URI");
+        } catch (IllegalStateException e) {
+            assertFalse(e instanceof PetVersionConflictException);
+        }
+    }
+
+    @Test
+    public void metrics_recordBatchesAndColumnarCalls() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(PetEntry.CONTENT_URI)
+                .withValues(pet("Max")).build());
+        operations.add(ContentProviderOperation.newInsert(PetEntry.CONTENT_URI)
+                .withValues(pet("Luna")).build());
+        mProvider.get().applyBatch(operations);
+
+        Bundle pets = new Bundle();
+        pets.putString(PetContract.KEY_COLUMN_NAMES, "TotoBella");
+        pets.putIntArray(PetContract.KEY_COLUMN_NAME_LENGTHS, new int[]{4, 5});
+        pets.putString(PetContract.KEY_COLUMN_BREEDS, "");
+        pets.putIntArray(PetContract.KEY_COLUMN_BREED_LENGTHS, new int[]{-1, -1});
+        pets.putIntArray(PetContract.KEY_COLUMN_GENDERS, new int[]{1, 2});
+        pets.putIntArray(PetContract.KEY_COLUMN_WEIGHTS, new int[]{3, 4});
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_WRITE_PETS_COLUMNAR, null, pets);
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_READ_PETS_COLUMNAR, null, null);
+
+        Bundle metrics = mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_GET_METRICS,
+                null, null);
+        assertMetric(metrics, "apply_batch/pets", 1, 2);
+        assertMetric(metrics, "write_columnar/pets", 1, 2);
+        assertMetric(metrics, "read_columnar/pets", 1, 4);
+    }
+
+    private static void assertMetric(Bundle metrics, String series, long count, long rows) {
+        Bundle metric = metrics.getBundle(series);
+        assertNotNull(series, metric);
+        assertEquals(series, count, metric.getLong(PetContract.KEY_METRIC_COUNT));
+        assertEquals(series, rows, metric.getLong(PetContract.KEY_METRIC_ROWS));
+    }
+
+    static ContentValues pet(String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        return values;
+    }
+
+    private int countPets() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID}, null,
+                null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
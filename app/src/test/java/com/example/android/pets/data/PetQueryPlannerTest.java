@@ -0,0 +1,183 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQueryBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Pages through pets whose sort keys repeat, forwards and backwards, and checks that the pages
+ * hold every pet once and in list order, and that a page is read from an index rather than
+ * sorted.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetQueryPlannerTest {
+
+    private static final int PET_COUNT = 100;
+
+    private static final int PAGE_SIZE = 7;
+
+    private PetDbHelper mDbHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void insertPets() {
+        mDbHelper = new PetDbHelper(RuntimeEnvironment.application);
+        mDb = mDbHelper.getWritableDatabase();
+        // Few names and weights, so most pets share them with others
+        for (int i = 0; i < PET_COUNT; i++) {
+            mDb.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_NAME
+                    + ", " + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT
+                    + ") VALUES (?, ?, ?)", new Object[]{"Pet " + (i * 7 % 10), i % 3, i % 12});
+        }
+        // Deleted pets are never in a page
+        mDb.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_DELETED_AT
+                + " = 1 WHERE " + PetEntry._ID + " % 9 = 0");
+    }
+
+    @After
+    public void closeDatabase() {
+        mDbHelper.close();
+        RuntimeEnvironment.application.deleteDatabase("shelter.db");
+    }
+
+    @Test
+    public void pagesByName_holdEveryPetInOrder() {
+        assertPagesHoldEveryPet(new PetQueryBuilder().sortBy(PetEntry.COLUMN_PET_NAME));
+    }
+
+    @Test
+    public void pagesByWeight_holdEveryPetInOrder() {
+        assertPagesHoldEveryPet(new PetQueryBuilder().sortBy(PetEntry.COLUMN_PET_WEIGHT));
+        assertPagesHoldEveryPet(new PetQueryBuilder().sortBy(PetEntry.COLUMN_PET_WEIGHT)
+                .gender(PetEntry.GENDER_MALE));
+    }
+
+    @Test
+    public void pagesById_holdEveryPetInOrder() {
+        assertPagesHoldEveryPet(new PetQueryBuilder());
+    }
+
+    @Test
+    public void pageByName_isReadFromIndexWithoutSorting() {
+        assertNotSorted(new PetQueryBuilder().sortBy(PetEntry.COLUMN_PET_NAME)
+                .pageSize(PAGE_SIZE).after(5, "Pet 3", 0).build());
+        assertNotSorted(new PetQueryBuilder().sortBy(PetEntry.COLUMN_PET_WEIGHT)
+                .gender(PetEntry.GENDER_MALE).pageSize(PAGE_SIZE).after(5, null, 4).build());
+        assertNotSorted(new PetQueryBuilder().sortBy(PetEntry.COLUMN_PET_WEIGHT)
+                .pageSize(PAGE_SIZE).after(5, null, 4).build());
+    }
+
+    /**
+     * Read all pets of the query page by page, both after the last pet of each page and before
+     * the first, and check they are the pets of the whole query in the same order.
+     */
+    private void assertPagesHoldEveryPet(PetQueryBuilder query) {
+        List<Pet> all = read(new PetQueryBuilder(query).build());
+        assertFalse(all.isEmpty());
+
+        List<Pet> forwards = new ArrayList<>();
+        List<Pet> page = read(new PetQueryBuilder(query).pageSize(PAGE_SIZE).build());
+        while (!page.isEmpty()) {
+            forwards.addAll(page);
+            Pet last = page.get(page.size() - 1);
+            page = read(new PetQueryBuilder(query).pageSize(PAGE_SIZE)
+                    .after(last.id, last.name, last.weight).build());
+        }
+        assertEquals(all, forwards);
+
+        List<Pet> backwards = new ArrayList<>();
+        Pet end = all.get(all.size() - 1);
+        backwards.add(end);
+        page = read(new PetQueryBuilder(query).pageSize(PAGE_SIZE)
+                .before(end.id, end.name, end.weight).build());
+        while (!page.isEmpty()) {
+            // Each page is in list order, and comes before the pets read so far
+            List<Pet> reversed = new ArrayList<>(page);
+            Collections.reverse(reversed);
+            backwards.addAll(reversed);
+            Pet first = page.get(0);
+            page = read(new PetQueryBuilder(query).pageSize(PAGE_SIZE)
+                    .before(first.id, first.name, first.weight).build());
+        }
+        Collections.reverse(backwards);
+        assertEquals(all, backwards);
+    }
+
+    private void assertNotSorted(Uri uri) {
+        PetQueryPlanner plan = PetQueryPlanner.plan(uri, PetEntry.LIST_PROJECTION, null, null,
+                null);
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + plan.sql, plan.args);
+        try {
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(cursor.getColumnIndexOrThrow("detail"));
+                assertFalse(plan.sql + ": " + detail, detail.contains("TEMP B-TREE"));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<Pet> read(Uri uri) {
+        PetQueryPlanner plan = PetQueryPlanner.plan(uri, PetEntry.LIST_PROJECTION, null, null,
+                null);
+        List<Pet> pets = new ArrayList<>();
+        Cursor cursor = mDb.rawQuery(plan.sql, plan.args);
+        try {
+            while (cursor.moveToNext()) {
+                pets.add(new Pet(
+                        cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry._ID)),
+                        cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME)),
+                        cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT))));
+            }
+        } finally {
+            cursor.close();
+        }
+        return pets;
+    }
+
+    private static final class Pet {
+
+        final long id;
+        final String name;
+        final int weight;
+
+        Pet(long id, String name, int weight) {
+            this.id = id;
+            this.name = name;
+            this.weight = weight;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Pet && ((Pet) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) id;
+        }
+
+        @Override
+        public String toString() {
+            return id + " " + name + " " + weight;
+        }
+    }
+}